@@ -0,0 +1,198 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.util.function.Supplier;
+
+import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
+
+/**
+ * The autonomous routines the drivers can pick from, and the one they picked. The dashboard
+ * chooser holds the registered entries themselves, so picking a routine never goes through a
+ * string lookup.
+ *
+ * <p>Call {@link #prepare()} every disabled loop. When the selection changes it builds the
+ * selected routine, loads it and dry-runs it to get the JIT to compile it. At the start of
+ * autonomous {@link #start()} hands back that prepared routine, and {@link #stop()} ends it.
+ *
+ * <p>The dry run drives the real drive, through the same output object the routine gets in
+ * autonomous, with the outputs scaled to zero. If it went to a do-nothing output instead, the JIT
+ * would compile the routine's drive calls for that one type only and throw the compiled code
+ * away the first time autonomous called the real drive. Scaling rather than skipping the call
+ * keeps a branch that only autonomous takes out of the compiled code as well.
+ */
+public class AutoRegistry {
+  // Dry-run loops per warm-up; more than the 15000 calls after which HotSpot compiles a method
+  // with C2, so autonomous starts in fully optimized code
+  private static final int kWarmupLoops = 20000;
+  // Time (ns) each prepare() call may spend dry-running. Every dry-run loop writes the real
+  // drive, so its cost is only known on the robot; a time budget keeps the disabled loop, which
+  // runs at real-time priority, from holding the CPU whatever that cost turns out to be.
+  private static final long kWarmupBudgetNanos = 2_000_000L;
+
+  /**
+   * The output every routine gets, dry run or not. Scales the commands to zero until the routine
+   * is started.
+   */
+  private static final class GatedOutput implements AutoRoutine.DriveOutput {
+    private final AutoRoutine.DriveOutput m_drive;
+    private double m_gain;
+
+    GatedOutput(AutoRoutine.DriveOutput drive) {
+      m_drive = drive;
+    }
+
+    @Override
+    public void tankDrive(double left, double right) {
+      m_drive.tankDrive(left * m_gain, right * m_gain);
+    }
+  }
+
+  /**
+   * A registered routine.
+   */
+  public static final class Entry {
+    private final String m_name;
+    private final String m_description;
+    private final Supplier<AutoRoutine> m_factory;
+
+    private Entry(String name, String description, Supplier<AutoRoutine> factory) {
+      m_name = name;
+      m_description = description;
+      m_factory = factory;
+    }
+
+    public String getName() {
+      return m_name;
+    }
+
+    public String getDescription() {
+      return m_description;
+    }
+  }
+
+  private final SendableChooser<Entry> m_chooser = new SendableChooser<>();
+  private final GatedOutput m_output;
+  private boolean m_hasDefault;
+
+  private Entry m_preparedEntry;
+  private AutoRoutine m_prepared;
+  private int m_warmedUp;
+  private long m_warmupNanos;
+  private AutoRoutine m_running;
+
+  /**
+   * Create a registry.
+   *
+   * @param drive Where routines send drive commands. Also gets zero commands while disabled.
+   */
+  public AutoRegistry(AutoRoutine.DriveOutput drive) {
+    m_output = new GatedOutput(drive);
+  }
+
+  /**
+   * Register a routine. The first one registered is the default.
+   *
+   * @param name        Name shown in the chooser.
+   * @param description What the routine does.
+   * @param factory     Builds a new instance of the routine.
+   */
+  public void register(String name, String description, Supplier<AutoRoutine> factory) {
+    final Entry entry = new Entry(name, description, factory);
+    if (m_hasDefault) {
+      m_chooser.addOption(name, entry);
+    } else {
+      m_chooser.setDefaultOption(name, entry);
+      m_hasDefault = true;
+    }
+  }
+
+  /**
+   * Get the chooser to put on the dashboard.
+   *
+   * @return the chooser
+   */
+  public SendableChooser<Entry> getChooser() {
+    return m_chooser;
+  }
+
+  /**
+   * Build the selected routine if the selection changed since the last call, and carry on
+   * warming it up for up to 2 ms. Call from disabledPeriodic; warming up takes a few seconds
+   * of disabled time. When it finishes it prints the time per dry-run loop.
+   */
+  public void prepare() {
+    final Entry selected = m_chooser.getSelected();
+    if (selected != null && selected != m_preparedEntry) {
+      build(selected);
+    }
+    if (m_prepared == null || m_warmedUp >= kWarmupLoops) {
+      return;
+    }
+    final long start = System.nanoTime();
+    long now = start;
+    while (m_warmedUp < kWarmupLoops && now - start < kWarmupBudgetNanos) {
+      m_prepared.rehearse(m_warmedUp++);
+      now = System.nanoTime();
+    }
+    m_warmupNanos += now - start;
+    if (m_warmedUp == kWarmupLoops) {
+      m_prepared.end();
+      System.out.printf("Auto prepared: %s (%.1f ms, %.1f us per loop)%n",
+          m_preparedEntry.m_name, m_warmupNanos / 1e6, m_warmupNanos / 1e3 / kWarmupLoops);
+    }
+  }
+
+  private void build(Entry selected) {
+    if (m_prepared != null && m_warmedUp < kWarmupLoops) {
+      m_prepared.end(); // abandon the unfinished dry run
+    }
+    m_prepared = selected.m_factory.get();
+    m_preparedEntry = selected;
+    m_prepared.load();
+    m_prepared.init(m_output);
+    m_warmedUp = 0;
+    m_warmupNanos = 0;
+  }
+
+  /**
+   * Start the selected routine. If it wasn't built while disabled (e.g. the code started
+   * straight into autonomous), it is built now. A routine that hasn't finished warming up starts
+   * anyway rather than hold up the match.
+   *
+   * @return the running routine; call its periodic() every autonomous loop
+   */
+  public AutoRoutine start() {
+    stop();
+    final Entry selected = m_chooser.getSelected();
+    if (selected != null && selected != m_preparedEntry) {
+      build(selected);
+    }
+    if (m_warmedUp < kWarmupLoops) {
+      m_prepared.end();
+      m_warmedUp = kWarmupLoops;
+    }
+    System.out.println("Auto selected: " + m_preparedEntry.m_name);
+    m_prepared.init(m_output);
+    m_output.m_gain = 1.0;
+    m_running = m_prepared;
+    return m_running;
+  }
+
+  /**
+   * End the running routine, if there is one, and stop passing its commands to the drive. Call
+   * when autonomous ends: from disabledInit and teleopInit.
+   */
+  public void stop() {
+    m_output.m_gain = 0.0;
+    if (m_running != null) {
+      m_running.end();
+      m_running = null;
+    }
+  }
+}
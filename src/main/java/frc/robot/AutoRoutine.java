@@ -0,0 +1,65 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+/**
+ * An autonomous routine. Routines are registered with an {@link AutoRegistry}, which builds the
+ * selected one and warms it up while the robot is disabled, so the first autonomous loop runs
+ * already-compiled code.
+ *
+ * <p>Warming up runs the routine dry: {@link #init(DriveOutput)} with an output that scales every
+ * command to zero, then {@link #rehearse(int)} many times. So a routine must only move the robot
+ * through the output it was given, and {@link #init(DriveOutput)} must reset all of its state.
+ * Code that doesn't run during the dry run is compiled only once autonomous reaches it, so
+ * routines whose decisions depend on sensors should override {@link #rehearse(int)}.
+ */
+public interface AutoRoutine {
+  /**
+   * Where a routine sends its drive commands.
+   */
+  @FunctionalInterface
+  interface DriveOutput {
+    void tankDrive(double left, double right);
+  }
+
+  /**
+   * Load anything slow, e.g. trajectory files. Called once, while disabled.
+   */
+  default void load() {
+  }
+
+  /**
+   * Get ready to run. Called at the start of autonomous, and at the start of each dry run.
+   *
+   * @param drive Where to send drive commands.
+   */
+  void init(DriveOutput drive);
+
+  /**
+   * Run one loop of the routine.
+   */
+  void periodic();
+
+  /**
+   * Run one loop of the dry run. The default runs {@link #periodic()}, which only takes the
+   * branches the robot's current sensor readings lead to. Override it to also run the loop on
+   * made-up readings, so every branch has run before autonomous.
+   *
+   * @param loop Dry-run loop number, from 0.
+   */
+  default void rehearse(int loop) {
+    periodic();
+  }
+
+  /**
+   * Called when autonomous ends (the robot is disabled or teleop starts), and at the end of each
+   * dry run.
+   */
+  default void end() {
+  }
+}
@@ -0,0 +1,138 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Chain of shaping stages applied to one joystick axis, e.g. deadband, then expo curve, then
+ * scale, then slew limit. The chain is built once into a fixed array, so processing a value
+ * walks the array with no allocation. Stages read their settings on every call, e.g. from
+ * {@link ParameterStore} handles, so tuning changes take effect without rebuilding the chain
+ * or losing its state.
+ *
+ * <p>Each pipeline holds state (the slew limiter's last output), so use one per axis.
+ */
+public class DriverInputPipeline {
+  /**
+   * One step of the pipeline.
+   */
+  public interface Stage {
+    /**
+     * Shape a value.
+     *
+     * @param value Output of the previous stage.
+     * @param dt    Time (sec) since the last call.
+     * @return the shaped value
+     */
+    double apply(double value, double dt);
+
+    /**
+     * Forget any state, e.g. when the robot is disabled.
+     */
+    default void reset() {
+    }
+  }
+
+  private final Stage[] m_stages;
+
+  /**
+   * Build a pipeline. Stages run in the order given.
+   *
+   * @param stages The stages.
+   */
+  public DriverInputPipeline(Stage... stages) {
+    m_stages = stages.clone();
+  }
+
+  /**
+   * Run a value through every stage.
+   *
+   * @param value Raw axis value.
+   * @param dt    Time (sec) since the last call.
+   * @return the shaped value
+   */
+  public double process(double value, double dt) {
+    for (Stage stage : m_stages) {
+      value = stage.apply(value, dt);
+    }
+    return value;
+  }
+
+  /**
+   * Reset every stage.
+   */
+  public void reset() {
+    for (Stage stage : m_stages) {
+      stage.reset();
+    }
+  }
+
+  /**
+   * Zero small values and rescale the rest so the output still starts at 0 past the deadband.
+   *
+   * @param width Half-width of the deadband.
+   * @return the stage
+   */
+  public static Stage deadband(DoubleSupplier width) {
+    return (value, dt) -> {
+      final double w = width.getAsDouble();
+      if (Math.abs(value) <= w) {
+        return 0.0;
+      }
+      return Math.copySign((Math.abs(value) - w) / (1.0 - w), value);
+    };
+  }
+
+  /**
+   * Blend the value with its cube for finer control near center.
+   *
+   * @param expo 0 for linear, 1 for fully cubic.
+   * @return the stage
+   */
+  public static Stage expo(DoubleSupplier expo) {
+    return (value, dt) -> {
+      final double e = expo.getAsDouble();
+      return (1.0 - e) * value + e * value * value * value;
+    };
+  }
+
+  /**
+   * Multiply by a constant.
+   *
+   * @param scale The factor.
+   * @return the stage
+   */
+  public static Stage scale(DoubleSupplier scale) {
+    return (value, dt) -> value * scale.getAsDouble();
+  }
+
+  /**
+   * Limit how fast the value may change.
+   *
+   * @param ratePerSecond Largest change per second.
+   * @return the stage
+   */
+  public static Stage slewLimit(DoubleSupplier ratePerSecond) {
+    return new Stage() {
+      private double m_last;
+
+      @Override
+      public double apply(double value, double dt) {
+        final double step = ratePerSecond.getAsDouble() * dt;
+        m_last += Math.max(-step, Math.min(step, value - m_last));
+        return m_last;
+      }
+
+      @Override
+      public void reset() {
+        m_last = 0.0;
+      }
+    };
+  }
+}
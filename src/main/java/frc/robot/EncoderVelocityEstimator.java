@@ -0,0 +1,256 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.util.function.DoubleSupplier;
+
+import edu.wpi.first.wpilibj.Encoder;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Velocity and acceleration of both drive sides from their encoders. A Notifier samples both
+ * encoders at a fixed rate, stamping each sample with the FPGA clock, into ring buffers; its
+ * thread runs in the {@link RobotThreads} sensor class. Velocity is the least-squares slope of
+ * count over time across the window, which is much smoother than differencing two counts;
+ * acceleration is the slope of the velocity history the same way.
+ *
+ * <p>Results are published in volatile fields, so any thread can read them without locking.
+ * Each value is individually current; values read one after another may come from neighbouring
+ * samples.
+ *
+ * <p>Slip is flagged when the two sides' speeds aren't in the proportion their outputs ask for,
+ * e.g. one side spinning on a slick spot. Each side's speed is divided by its output, and the two
+ * results are compared, so deliberate arcs and turns don't count.
+ */
+public class EncoderVelocityEstimator {
+  // Time (sec) between samples
+  private static final double kSamplePeriod = 0.005;
+  // Samples in the regression window, 50 ms worth
+  private static final int kWindow = 10;
+  // A count change bigger than this between samples can only be an encoder reset
+  private static final int kMaxCountJump = 200;
+  // Below this speed (counts/sec) a side is "stopped" for slip detection
+  private static final double kMinSlipSpeed = 200.0;
+  // Below this output a side barely moves, so its speed says nothing about slip
+  private static final double kMinSlipOutput = 0.15;
+
+  private final Side m_left;
+  private final Side m_right;
+  private final DoubleSupplier m_leftOutput;
+  private final DoubleSupplier m_rightOutput;
+  private final double m_slipRatio;
+  private final Notifier m_notifier;
+
+  // Odd while the encoders are being reset. Only written in resetEncoders(), which is
+  // synchronized, so the two increments of one reset never interleave with another's.
+  private volatile int m_resets;
+  private int m_seenResets;
+  private boolean m_registered;
+  private volatile boolean m_slipping;
+
+  /**
+   * Sample history and results for one side.
+   */
+  private static final class Side {
+    private final Encoder m_encoder;
+    private final long[] m_times = new long[kWindow];
+    private final double[] m_counts = new double[kWindow];
+    private final double[] m_velocities = new double[kWindow];
+    private int m_next;
+    private int m_size;
+    private int m_lastCount;
+
+    volatile double m_velocity;
+    volatile double m_acceleration;
+
+    Side(Encoder encoder) {
+      m_encoder = encoder;
+    }
+
+    void add(int count, long time) {
+      if (m_size > 0 && Math.abs(count - m_lastCount) > kMaxCountJump) {
+        clear();
+      }
+      m_lastCount = count;
+      m_times[m_next] = time;
+      m_counts[m_next] = count;
+      if (m_size < kWindow) {
+        m_size++;
+      }
+      final double velocity = m_size > 1 ? slope(m_times, m_counts, m_next, m_size) : 0.0;
+      m_velocities[m_next] = velocity;
+      m_velocity = velocity;
+      m_acceleration = m_size > 2 ? slope(m_times, m_velocities, m_next, m_size - 1) : 0.0;
+      m_next = (m_next + 1) % kWindow;
+    }
+
+    void clear() {
+      m_size = 0;
+      m_velocity = 0.0;
+      m_acceleration = 0.0;
+    }
+  }
+
+  /**
+   * Create the estimator. Sampling starts with {@link #start()}.
+   *
+   * @param left        Left encoder, counting up going forward.
+   * @param right       Right encoder, counting up going forward.
+   * @param leftOutput  Commanded left output, used for slip detection.
+   * @param rightOutput Commanded right output (either sign convention, only its size is used).
+   * @param slipRatio   Fraction the two sides' speed per unit output may differ by before it
+   *                    counts as slip.
+   */
+  public EncoderVelocityEstimator(Encoder left, Encoder right, DoubleSupplier leftOutput,
+      DoubleSupplier rightOutput, double slipRatio) {
+    m_left = new Side(left);
+    m_right = new Side(right);
+    m_leftOutput = leftOutput;
+    m_rightOutput = rightOutput;
+    m_slipRatio = slipRatio;
+    m_notifier = new Notifier(this::sample);
+  }
+
+  /**
+   * Start sampling.
+   */
+  public void start() {
+    m_notifier.startPeriodic(kSamplePeriod);
+  }
+
+  /**
+   * Zero both encoders and throw away the history that spans the reset. Safe to call from any
+   * thread, e.g. the main loop and DriveAround at once. Any sample that overlaps the reset is
+   * dropped, so the drop in count is never taken for motion.
+   */
+  public synchronized void resetEncoders() {
+    m_resets++; // odd: the sampler stays away from the encoders
+    m_left.m_encoder.reset();
+    m_right.m_encoder.reset();
+    m_resets++;
+  }
+
+  private void sample() {
+    if (!m_registered) {
+      // the Notifier makes its own thread; put it with the other sensor threads
+      m_registered = true;
+      RobotThreads.registerCurrent(RobotThreads.Priority.kSensor);
+    }
+    final int resets = m_resets;
+    if ((resets & 1) != 0) {
+      return;
+    }
+    if (resets != m_seenResets) {
+      m_seenResets = resets;
+      m_left.clear();
+      m_right.clear();
+    }
+    final long time = RobotController.getFPGATime();
+    final int leftCount = m_left.m_encoder.getRaw();
+    final int rightCount = m_right.m_encoder.getRaw();
+    if (m_resets != resets) {
+      return; // a reset started while we read; the next sample starts over
+    }
+    m_left.add(leftCount, time);
+    m_right.add(rightCount, time);
+
+    final double leftOutput = Math.abs(m_leftOutput.getAsDouble());
+    final double rightOutput = Math.abs(m_rightOutput.getAsDouble());
+    final double left = Math.abs(m_left.m_velocity);
+    final double right = Math.abs(m_right.m_velocity);
+    if (leftOutput < kMinSlipOutput || rightOutput < kMinSlipOutput
+        || Math.max(left, right) < kMinSlipSpeed) {
+      m_slipping = false;
+      return;
+    }
+    // speed per unit output should match on both sides, whatever the outputs are
+    final double leftRate = left / leftOutput;
+    final double rightRate = right / rightOutput;
+    m_slipping = Math.abs(leftRate - rightRate) > m_slipRatio * Math.max(leftRate, rightRate);
+  }
+
+  /**
+   * Least-squares slope of y over t for the n samples ending at index last of the ring buffers.
+   * Times are FPGA microseconds, the slope is per second.
+   */
+  private static double slope(long[] t, double[] y, int last, int n) {
+    final long t0 = t[last];
+    double sumT = 0.0;
+    double sumY = 0.0;
+    double sumTT = 0.0;
+    double sumTY = 0.0;
+    for (int i = 0; i < n; i++) {
+      final int index = (last - i + kWindow) % kWindow;
+      final double dt = (t[index] - t0) * 1e-6;
+      sumT += dt;
+      sumY += y[index];
+      sumTT += dt * dt;
+      sumTY += dt * y[index];
+    }
+    final double denominator = n * sumTT - sumT * sumT;
+    return denominator > 0.0 ? (n * sumTY - sumT * sumY) / denominator : 0.0;
+  }
+
+  /**
+   * Get the left side's velocity.
+   *
+   * @return counts per second
+   */
+  public double getLeftVelocity() {
+    return m_left.m_velocity;
+  }
+
+  /**
+   * Get the right side's velocity.
+   *
+   * @return counts per second
+   */
+  public double getRightVelocity() {
+    return m_right.m_velocity;
+  }
+
+  /**
+   * Get the left side's acceleration.
+   *
+   * @return counts per second squared
+   */
+  public double getLeftAcceleration() {
+    return m_left.m_acceleration;
+  }
+
+  /**
+   * Get the right side's acceleration.
+   *
+   * @return counts per second squared
+   */
+  public double getRightAcceleration() {
+    return m_right.m_acceleration;
+  }
+
+  /**
+   * Are the wheels on one side slipping.
+   *
+   * @return true if both sides are driven but their speeds are out of proportion to the outputs
+   */
+  public boolean isSlipping() {
+    return m_slipping;
+  }
+
+  /**
+   * Push velocities, accelerations and the slip flag to the dashboard. Call at a low rate.
+   */
+  public void publish() {
+    SmartDashboard.putNumber("Velocity/Left", m_left.m_velocity);
+    SmartDashboard.putNumber("Velocity/Right", m_right.m_velocity);
+    SmartDashboard.putNumber("Velocity/Left Accel", m_left.m_acceleration);
+    SmartDashboard.putNumber("Velocity/Right Accel", m_right.m_acceleration);
+    SmartDashboard.putBoolean("Velocity/Slipping", m_slipping);
+  }
+}
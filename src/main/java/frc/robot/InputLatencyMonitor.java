@@ -0,0 +1,88 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Measures how long driver input takes to reach the motors. A background thread stamps each
+ * driver station packet as it arrives; the loop calls {@link #outputWritten(double)} right after
+ * writing the motors from joystick values, which gives the latency of the newest packet. The loop
+ * runs on its own 20 ms timer, not on packet arrival, so this is usually somewhere between 0 and
+ * one loop period plus processing time.
+ */
+public class InputLatencyMonitor {
+  private volatile double m_packetTime = Double.NaN;
+
+  private double m_last;
+  private double m_max;
+  private double m_sum;
+  private int m_count;
+
+  /**
+   * Waits for driver station packets and stamps them.
+   */
+  private class PacketStamper implements Runnable {
+    @Override
+    public void run() {
+      final DriverStation ds = DriverStation.getInstance();
+      while (true) {
+        ds.waitForData();
+        m_packetTime = Timer.getFPGATimestamp();
+      }
+    }
+  }
+
+  /**
+   * Start stamping packets.
+   */
+  public void start() {
+    RobotThreads.create("InputLatencyMonitor", RobotThreads.Priority.kSensor, new PacketStamper())
+        .start();
+  }
+
+  /**
+   * Record that motor outputs based on the newest packet were just written.
+   *
+   * @param now FPGA timestamp (sec) of the write.
+   */
+  public void outputWritten(double now) {
+    final double packetTime = m_packetTime;
+    if (Double.isNaN(packetTime)) {
+      return;
+    }
+    m_last = now - packetTime;
+    m_max = Math.max(m_max, m_last);
+    m_sum += m_last;
+    m_count++;
+  }
+
+  /**
+   * Get the latency from the last {@link #outputWritten(double)}.
+   *
+   * @return seconds from packet arrival to motor write
+   */
+  public double getLastLatency() {
+    return m_last;
+  }
+
+  /**
+   * Publish the latest, mean and worst latency since the last publish, in milliseconds, and
+   * start a new window. Call at a low rate.
+   */
+  public void publish() {
+    SmartDashboard.putNumber("Input Latency/Last ms", m_last * 1e3);
+    SmartDashboard.putNumber("Input Latency/Mean ms", m_count > 0 ? m_sum / m_count * 1e3 : 0.0);
+    SmartDashboard.putNumber("Input Latency/Max ms", m_max * 1e3);
+    m_max = 0.0;
+    m_sum = 0.0;
+    m_count = 0;
+  }
+}
@@ -8,7 +8,6 @@
 package frc.robot;
 
 import edu.wpi.first.wpilibj.TimedRobot;
-import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj.Talon;
 import edu.wpi.first.wpilibj.drive.DifferentialDrive;
@@ -18,6 +17,16 @@ import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.Encoder;
 import edu.wpi.first.wpilibj.Ultrasonic;
+import edu.wpi.first.wpilibj.Counter;
+import edu.wpi.first.wpilibj.DigitalInput;
+import edu.wpi.first.wpilibj.DigitalOutput;
+import edu.wpi.first.wpilibj.Filesystem;
+import edu.wpi.first.wpilibj.DriverStation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.function.IntSupplier;
 
 /**
  * The VM is configured to automatically run this class, and to call the
@@ -27,10 +36,8 @@ import edu.wpi.first.wpilibj.Ultrasonic;
  * project.
  */
 public class Macadamia extends TimedRobot {
-  private static final String kDefaultAuto = "Default";
-  private static final String kCustomAuto = "My Auto";
-  private String m_autoSelected;
-  private final SendableChooser<String> m_chooser = new SendableChooser<>();
+  private AutoRegistry autos;
+  private AutoRoutine autoRoutine;
 
   private Talon leftTalon, rightTalon;
   private DifferentialDrive drive;
@@ -42,7 +49,14 @@ public class Macadamia extends TimedRobot {
   private final int FRONT_ECHO = 9;
   private final int REAR_PING = 5;
   private final int REAR_ECHO = 4;
-  private final double safeDistance = 30.0;
+  private final ParameterStore params = new ParameterStore();
+  private final ParameterStore.DoubleParameter safeDistance = params.addDouble("safeDistance", 30.0);
+  private MonitoredRangeSensor frontRange, rearRange;
+  // Automatic mode pings each sensor every 0.2 sec, so a couple of missed echoes is stale
+  private final double ULTRASONIC_STALE_AFTER = 0.5;
+  // Top motor output allowed in a direction whose ultrasonic has gone stale;
+  // a quarter of full joystick speed
+  private final double BLIND_SPEED_CAP = 0.0625;
 
   private XboxController xbox;
 
@@ -53,35 +67,104 @@ public class Macadamia extends TimedRobot {
   private final int L_ENCODER_B = 1;
   private final int R_ENCODER_A = 2;
   private final int R_ENCODER_B = 3;
+  private MonitoredEncoder leftEncHealth, rightEncHealth;
+  private EncoderVelocityEstimator velocity;
+  // Sides may differ in speed per unit of motor output by this fraction before
+  // we call it wheel slip
+  private final double SLIP_RATIO = 0.3;
+  private final double ENCODER_STALE_AFTER = 0.5;
+
+  // Publish sensor health every 25 loops, i.e. twice a second
+  private final int HEALTH_PUBLISH_LOOPS = 25;
+  private int healthPublishCount = 0;
+
+  // Shared-memory bus to coprocessor processes; null if it couldn't be mapped
+  private SensorBus sensorBus;
+  private final SensorBus.RobotState busState = new SensorBus.RobotState();
+  private final SensorBus.CoprocessorResult busResult = new SensorBus.CoprocessorResult();
+  // A coprocessor result older than this (ns) is stale and mustn't be acted on
+  private final long BUS_RESULT_MAX_AGE = 100_000_000L;
+  private boolean busResultFresh;
 
   private double leftSpeed, rightSpeed; // speed to run motors
   private int stopLeft, stopRight; // When robot reached its destination
   private boolean startPressed = false;
 
-  public class DriveAround extends Thread {
+  private final StartupProfile startup = new StartupProfile();
+  private boolean firstLoop = true;
+  private long robotInitEnd;
+
+  // Tunable speeds and distances, see deploy/tuning.properties
+  private final ParameterStore.DoubleParameter joystickScale = params.addDouble("joystickScale", 0.25);
+  private final ParameterStore.DoubleParameter followSpeed = params.addDouble("followSpeed", 0.33);
+  private final ParameterStore.DoubleParameter straightLeftSpeed = params.addDouble("straightLeftSpeed", 0.45);
+  private final ParameterStore.DoubleParameter straightRightSpeed = params.addDouble("straightRightSpeed", 0.5);
+  private final ParameterStore.IntParameter straightCounts = params.addInt("straightCounts", 1000);
+  private final ParameterStore.IntParameter turnRightCounts = params.addInt("turnRightCounts", 650);
+  private final ParameterStore.IntParameter turnLeftCounts = params.addInt("turnLeftCounts", 600);
+  private final ParameterStore.DoubleParameter driveAroundLeftSpeed = params.addDouble("driveAroundLeftSpeed", 0.47);
+  private final ParameterStore.DoubleParameter driveAroundRightSpeed = params.addDouble("driveAroundRightSpeed", 0.5);
+  private final ParameterStore.IntParameter driveAroundShortSide = params.addInt("driveAroundShortSide", 4000);
+  private final ParameterStore.IntParameter driveAroundLongSide = params.addInt("driveAroundLongSide", 5000);
+  private final ParameterStore.IntParameter driveAroundTurnCounts = params.addInt("driveAroundTurnCounts", 250);
+
+  // Joystick shaping; the pipelines read these live
+  private final ParameterStore.DoubleParameter inputDeadband = params.addDouble("inputDeadband", 0.08);
+  private final ParameterStore.DoubleParameter inputExpo = params.addDouble("inputExpo", 0.5);
+  private final ParameterStore.DoubleParameter inputSlewRate = params.addDouble("inputSlewRate", 3.0);
+  private final ParameterStore.DoubleParameter straightAssistGain = params.addDouble("straightAssistGain", 0.00004);
+  private final ParameterStore.DoubleParameter straightAssistTolerance = params.addDouble("straightAssistTolerance", 0.05);
+  private DriverInputPipeline leftInput, rightInput;
+  private StraightDriveAssist straightAssist;
+  private boolean joystickActive; // last loop drove from the joysticks
+  private final InputLatencyMonitor inputLatency = new InputLatencyMonitor();
+
+  // Busy-waits on the encoders, so it must stay in the background priority class
+  public class DriveAround implements Runnable {
 
     public void run() { // drive in square, all sides 12 inches, then go backward 12 inches
-      driveForward(4000);
+      driveForward(driveAroundShortSide.get());
       turnRight();
-      driveForward(5000);
+      driveForward(driveAroundLongSide.get());
       turnRight();
-      driveForward(4000);
+      driveForward(driveAroundShortSide.get());
       turnRight();
-      driveForward(5000);
+      driveForward(driveAroundLongSide.get());
       turnRight();
       startPressed = false;
     }
   }
 
-  public class ReadUltrasonic extends Thread {
+  /**
+   * Startup work nobody needs before the robot is controllable: the camera,
+   * dashboard choosers and the range printout. Runs after robotInit returns.
+   */
+  public class DeferredInit implements Runnable {
+    public void run() {
+      long t = startup.start();
+      SmartDashboard.putData("Auto choices", autos.getChooser());
+      startup.end("dashboard (deferred)", t);
+
+      // Configure Camera
+      t = startup.start();
+      CameraServer.getInstance().startAutomaticCapture();
+      startup.end("camera (deferred)", t);
+
+      System.out.println("front " + frontUltrasonic.getRangeInches());
+      System.out.println("rear " + rearUltrasonic.getRangeInches());
+    }
+  }
+
+  // Spins without sleeping; background priority class only
+  public class ReadUltrasonic implements Runnable {
     public void run() {
       //double frontDistane = frontUltrasonic.getRangeInches();
       // rearDistance = rearUltrasonic.getRangeInches();
       
       while(true) {
-      if (safetyStop(safeDistance, frontUltrasonic) && (leftSpeed > 0.0) && (rightSpeed > 0.0)) {
+      if (safetyStop(safeDistance.get(), frontRange) && (leftSpeed > 0.0) && (rightSpeed > 0.0)) {
         drive.stopMotor();
-      } else if (safetyStop(safeDistance, rearUltrasonic) && (leftSpeed < 0.0) && (rightSpeed < 0.0)) {
+      } else if (safetyStop(safeDistance.get(), rearRange) && (leftSpeed < 0.0) && (rightSpeed < 0.0)) {
         drive.stopMotor();
       } 
     }
@@ -94,42 +177,75 @@ public class Macadamia extends TimedRobot {
    */
   @Override
   public void robotInit() {
-    m_chooser.setDefaultOption("Default Auto", kDefaultAuto);
-    m_chooser.addOption("My Auto", kCustomAuto);
-    SmartDashboard.putData("Auto choices", m_chooser);
+    // everything before here is JVM startup, class loading and HAL init
+    startup.markJvmStartup();
+    // this is the thread TimedRobot runs the loop on
+    RobotThreads.registerCurrent(RobotThreads.Priority.kControl);
+    long t = startup.start();
+    // Load tuning parameters; the Tuning table can override them live
+    params.start(new File(Filesystem.getDeployDirectory(), "tuning.properties"), "Tuning");
+    buildInputPipelines();
+    startup.end("parameters", t);
 
     // Configure Drive
-    leftTalon = new Talon(LEFT_TALON);
-    rightTalon = new Talon(RIGHT_TALON);
+    t = startup.start();
+    leftTalon = createMotor(LEFT_TALON);
+    rightTalon = createMotor(RIGHT_TALON);
     drive = new DifferentialDrive(leftTalon, rightTalon);
+    // routines warm up on the real drive, so the registry needs it first
+    autos = new AutoRegistry(drive::tankDrive);
+    autos.register("Default Auto", "Keep safeDistance from whatever is in front", FollowAuto::new);
+    autos.register("My Auto", "Placeholder for a custom routine; same as Default for now", FollowAuto::new);
+    startup.end("drive", t);
 
     // Configure Ultrasonic2537 sensors on front and rear = new Ultrasonic2537(FRONT_PING, FRONT_ECHO); // ping, echo
-    frontUltrasonic = new Ultrasonic(FRONT_PING, FRONT_ECHO); // ping, echo
+    t = startup.start();
+    DigitalInput frontEcho = new DigitalInput(FRONT_ECHO);
+    frontUltrasonic = createUltrasonic(FRONT_PING, frontEcho); // ping, echo
 
-    rearUltrasonic = new Ultrasonic(REAR_PING, REAR_ECHO); // ping, echo
+    DigitalInput rearEcho = new DigitalInput(REAR_ECHO);
+    rearUltrasonic = createUltrasonic(REAR_PING, rearEcho); // ping, echo
 
     rearUltrasonic.setAutomaticMode(true);
 
-    // Configure Joystick input
-    xbox = new XboxController(0);
+    frontRange = new MonitoredRangeSensor("Health/Front Ultrasonic", frontUltrasonic,
+        createEchoCounter(frontEcho), ULTRASONIC_STALE_AFTER);
+    rearRange = new MonitoredRangeSensor("Health/Rear Ultrasonic", rearUltrasonic,
+        createEchoCounter(rearEcho), ULTRASONIC_STALE_AFTER);
+    startup.end("ultrasonics", t);
 
-    // Configure Camera
-    CameraServer.getInstance().startAutomaticCapture();
+    // Configure Joystick input
+    xbox = createController(0);
+    inputLatency.start();
 
     // Instantiate timer
     timer = new Timer();
 
-    leftEnc = new Encoder(L_ENCODER_A, L_ENCODER_B);
-    rightEnc = new Encoder(R_ENCODER_A, R_ENCODER_B, true);
+    t = startup.start();
+    leftEnc = createEncoder(L_ENCODER_A, L_ENCODER_B, false);
+    rightEnc = createEncoder(R_ENCODER_A, R_ENCODER_B, true);
     leftEnc.reset();
     rightEnc.reset();
+    leftEncHealth = new MonitoredEncoder("Health/Left Encoder", leftEnc, ENCODER_STALE_AFTER);
+    rightEncHealth = new MonitoredEncoder("Health/Right Encoder", rightEnc, ENCODER_STALE_AFTER);
+    // right motor output is inverted by DifferentialDrive, but slip detection only uses output magnitudes
+    velocity = new EncoderVelocityEstimator(leftEnc, rightEnc, leftTalon::get, rightTalon::get, SLIP_RATIO);
+    velocity.start();
+    startup.end("encoders", t);
+
+    t = startup.start();
+    try {
+      sensorBus = SensorBus.open(Paths.get(SensorBus.kDefaultPath));
+    } catch (IOException ex) {
+      DriverStation.reportWarning("Sensor bus disabled: " + ex.getMessage(), false);
+    }
+    startup.end("sensor bus", t);
 
-    System.out.println("front " + frontUltrasonic.getRangeInches());
-    System.out.println("rear " + rearUltrasonic.getRangeInches());
-    System.out.println("front " + frontUltrasonic.getRangeInches());
-    System.out.println("rear " + rearUltrasonic.getRangeInches());
-   //ReadUltrasonic ru = new ReadUltrasonic();
-    //ru.start();
+    // camera and dashboard can come up while we're already driving
+    RobotThreads.create("DeferredInit", RobotThreads.Priority.kBackground, new DeferredInit()).start();
+   //RobotThreads.create("ReadUltrasonic", RobotThreads.Priority.kBackground, new ReadUltrasonic()).start();
+    RobotThreads.startMonitor();
+    robotInitEnd = startup.start();
   }
 
   /**
@@ -143,25 +259,100 @@ public class Macadamia extends TimedRobot {
    */
   @Override
   public void robotPeriodic() {
+    if (firstLoop) {
+      firstLoop = false;
+      startup.end("robotInit to first loop", robotInitEnd);
+      startup.report();
+    }
+    params.poll(Timer.getFPGATimestamp());
+    publishSensorBus();
+
+    if (++healthPublishCount >= HEALTH_PUBLISH_LOOPS) {
+      healthPublishCount = 0;
+      double now = Timer.getFPGATimestamp();
+      frontRange.getHealth().publish(now);
+      rearRange.getHealth().publish(now);
+      leftEncHealth.getHealth().publish(now);
+      rightEncHealth.getHealth().publish(now);
+      inputLatency.publish();
+      velocity.publish();
+      SmartDashboard.putBoolean("Coprocessor Fresh", busResultFresh);
+    }
+  }
+
+  /**
+   * Write this loop's sensor state to the coprocessor bus and pick up the latest
+   * coprocessor result. There is no pose estimate yet, so the pose fields stay zero.
+   * If the coprocessor is mid-write the previous result is kept; either way it is only
+   * fresh while it is recent.
+   */
+  private void publishSensorBus() {
+    if (sensorBus == null) {
+      return;
+    }
+    busState.monotonicNanos = System.nanoTime();
+    busState.timestamp = Timer.getFPGATimestamp();
+    busState.leftCount = leftEncHealth.getRaw();
+    busState.rightCount = rightEncHealth.getRaw();
+    busState.frontRange = frontRange.getRangeInches();
+    busState.rearRange = rearRange.getRangeInches();
+    busState.leftOutput = leftTalon.get();
+    busState.rightOutput = rightTalon.get();
+    busState.flags = (isEnabled() ? SensorBus.STATE_ENABLED : 0)
+        | (isAutonomous() ? SensorBus.STATE_AUTONOMOUS : 0)
+        | (frontRange.isFresh() ? SensorBus.STATE_FRONT_FRESH : 0)
+        | (rearRange.isFresh() ? SensorBus.STATE_REAR_FRESH : 0);
+    sensorBus.writeState(busState);
+    sensorBus.readResult(busResult);
+    busResultFresh = busResult.monotonicNanos != 0
+        && busState.monotonicNanos - busResult.monotonicNanos < BUS_RESULT_MAX_AGE;
+  }
+
+  /**
+   * Sample every sensor once and refresh its health. Called at the start of each
+   * periodic function so the logic after it acts on this loop's readings.
+   */
+  private void updateSensors() {
+    double now = Timer.getFPGATimestamp();
+    frontRange.update(now);
+    rearRange.update(now);
+    leftEncHealth.update(now, leftTalon.get());
+    rightEncHealth.update(now, rightTalon.get());
   }
 
   /**
-   * This autonomous (along with the chooser code above) shows how to select
-   * between different autonomous modes using the dashboard. The sendable chooser
-   * code works with the Java SmartDashboard. If you prefer the LabVIEW Dashboard,
-   * remove all of the chooser code and uncomment the getString line to get the
-   * auto name from the text box below the Gyro
+   * This function is called once each time the robot becomes disabled.
+   */
+  @Override
+  public void disabledInit() {
+    autos.stop();
+    // start the next enable from rest, not from where the sticks were
+    resetInputPipelines();
+  }
+
+  /**
+   * This function is called periodically while disabled. Keep sensor health
+   * current so a dead sensor shows up before the match starts, and have the
+   * selected autonomous routine built and warmed up.
+   */
+  @Override
+  public void disabledPeriodic() {
+    updateSensors();
+    autos.prepare();
+  }
+
+  /**
+   * Start the autonomous routine picked on the dashboard. The routine was already
+   * built and warmed up while disabled, so this just lets its commands through to
+   * the drive.
    *
    * <p>
-   * You can add additional auto modes by adding additional comparisons to the
-   * switch structure below with additional strings. If using the SendableChooser
-   * make sure to add them to the chooser code above as well.
+   * You can add additional auto modes by writing an AutoRoutine and registering
+   * it with autos in robotInit.
    */
   @Override
   public void autonomousInit() {
-    m_autoSelected = m_chooser.getSelected();
-    // m_autoSelected = SmartDashboard.getString("Auto Selector", kDefaultAuto);
-    System.out.println("Auto selected: " + m_autoSelected);
+    autoRoutine = autos.start();
 
     timer.reset();
     timer.start();
@@ -169,32 +360,64 @@ public class Macadamia extends TimedRobot {
 
   /**
    * This function is called periodically during autonomous.
-   * The robot tries to stay exactly safeDistance away from an object in front of 
-   * the front Ultrasonic2537 sensor. 
    */
   @Override
   public void autonomousPeriodic() { 
-    double distance = frontUltrasonic.getRangeInches();
+    updateSensors();
+    autoRoutine.periodic();
+  }
 
-    if (distance < safeDistance) {
-      drive.tankDrive(-0.33, -0.33);
-    } else if (distance > safeDistance) {
-      drive.tankDrive(0.33, 0.33);
-    } else {
-      drive.tankDrive(0.0, 0.0);
+  /**
+   * The robot tries to stay exactly safeDistance away from an object in front of 
+   * the front Ultrasonic2537 sensor. If that sensor goes stale the robot holds still
+   * rather than chasing a reading it can't trust.
+   */
+  public class FollowAuto implements AutoRoutine {
+    private DriveOutput output;
+
+    @Override
+    public void init(DriveOutput output) {
+      this.output = output;
+    }
+
+    @Override
+    public void periodic() {
+      follow(frontRange.isFresh(), frontRange.getRangeInches());
+    }
+
+    /**
+     * Also run on made-up readings: stale, and inside, outside and right at
+     * safeDistance, so all four branches are compiled before autonomous.
+     */
+    @Override
+    public void rehearse(int loop) {
+      periodic();
+      double offset = (loop % 3 - 1) * 12.0;
+      follow(loop % 4 != 0, safeDistance.get() + offset);
     }
 
-    switch (m_autoSelected) {
-    case kCustomAuto:
-      // Put custom auto code here
-      break;
-    case kDefaultAuto:
-    default:
-      // Put default auto code here
-      break;
+    private void follow(boolean fresh, double distance) {
+      if (!fresh) {
+        output.tankDrive(0.0, 0.0);
+      } else if (distance < safeDistance.get()) {
+        output.tankDrive(-followSpeed.get(), -followSpeed.get());
+      } else if (distance > safeDistance.get()) {
+        output.tankDrive(followSpeed.get(), followSpeed.get());
+      } else {
+        output.tankDrive(0.0, 0.0);
+      }
     }
   }
 
+  /**
+   * This function is called once each time teleop starts. Autonomous runs
+   * straight into teleop without a disabled period in between, so the
+   * autonomous routine is ended here too.
+   */
+  @Override
+  public void teleopInit() {
+    autos.stop();
+  }
 
   /**
    * This function is called periodically during operator control.
@@ -203,77 +426,119 @@ public class Macadamia extends TimedRobot {
   public void teleopPeriodic() {
     // Use controller joysticks to set drive speed, but
     // safety stop if too close to an obstacle
+    updateSensors();
 
+    boolean joystick = false;
     if (xbox.getStartButtonPressed()) { // go for an autonomous drive when start button pressed
       startPressed = true;
-      DriveAround d = new DriveAround();
-      d.start();
+      RobotThreads.create("DriveAround", RobotThreads.Priority.kBackground, new DriveAround()).start();
     } else if (xbox.getYButtonPressed()) { // drive 2 feet forward when Y button pressed
       // reset encoders so counts start at 0
-      leftEnc.reset();
-      rightEnc.reset();
+      resetEncoders();
 
       // set motor speed to go straight forward
-      leftSpeed = 0.45;
-      rightSpeed = 0.5;
+      leftSpeed = straightLeftSpeed.get();
+      rightSpeed = straightRightSpeed.get();
 
       // set point we want to stop at
-      stopLeft = 1000;
-      stopRight = 1000;
+      stopLeft = straightCounts.get();
+      stopRight = straightCounts.get();
     } else if (xbox.getBButtonPressed()) { // turn 90 degrees to right when B button pressed
       // reset encoders so counts start at 0
-      leftEnc.reset();
-      rightEnc.reset();
+      resetEncoders();
 
       // set motor speed to go straight forward
-      leftSpeed = 0.45;
-      rightSpeed = -0.5;
+      leftSpeed = straightLeftSpeed.get();
+      rightSpeed = -straightRightSpeed.get();
 
       // set point we want to stop at
-      stopLeft = 650;
-      stopRight = 650;
+      stopLeft = turnRightCounts.get();
+      stopRight = turnRightCounts.get();
     } else if (xbox.getAButtonPressed()) { // drive backward 2 feet when A button pressed
       // reset encoders so counts start at 0
-      leftEnc.reset();
-      rightEnc.reset();
+      resetEncoders();
 
       // set motor speed to go straight forward
-      leftSpeed = -0.45;
-      rightSpeed = -0.5;
+      leftSpeed = -straightLeftSpeed.get();
+      rightSpeed = -straightRightSpeed.get();
 
       // set point we want to stop at
-      stopLeft = 1000;
-      stopRight = 1000;
+      stopLeft = straightCounts.get();
+      stopRight = straightCounts.get();
     } else if (xbox.getXButtonPressed()) { // turn 90 degrees to left when X button pressed
       // reset encoders so counts start at 0
-      leftEnc.reset();
-      rightEnc.reset();
+      resetEncoders();
 
       // set motor speed to go straight forward
-      leftSpeed = -0.45;
-      rightSpeed = 0.5;
+      leftSpeed = -straightLeftSpeed.get();
+      rightSpeed = straightRightSpeed.get();
 
       // set point we want to stop at
-      stopLeft = 600;
-      stopRight = 600;
+      stopLeft = turnLeftCounts.get();
+      stopRight = turnLeftCounts.get();
     } else if (stopLeft ==0 && stopRight ==0) {
+      if (!joystickActive) {
+        // back from an encoder move; ramp up from rest, not from where the sticks were
+        resetInputPipelines();
+      }
+      joystick = true;
       joystickDrive();
     } else if (!startPressed) { // drive fixed distance specified by the button presses
       driveEncoder(stopLeft, stopRight, leftSpeed, rightSpeed);
     }
+    joystickActive = joystick;
+  }
+
+  /**
+   * Build the joystick shaping chains: deadband, expo curve, speed scale, then
+   * slew limit. The stages read their tuning parameters on every loop, so the
+   * chains are built once and keep their state when the tuning changes.
+   */
+  private void buildInputPipelines() {
+    leftInput = new DriverInputPipeline(
+        DriverInputPipeline.deadband(inputDeadband::get),
+        DriverInputPipeline.expo(inputExpo::get),
+        DriverInputPipeline.scale(joystickScale::get),
+        DriverInputPipeline.slewLimit(inputSlewRate::get));
+    rightInput = new DriverInputPipeline(
+        DriverInputPipeline.deadband(inputDeadband::get),
+        DriverInputPipeline.expo(inputExpo::get),
+        DriverInputPipeline.scale(joystickScale::get),
+        DriverInputPipeline.slewLimit(inputSlewRate::get));
+    straightAssist = new StraightDriveAssist(straightAssistGain::get, straightAssistTolerance::get);
+  }
+
+  private void resetInputPipelines() {
+    leftInput.reset();
+    rightInput.reset();
   }
 
   public void joystickDrive() {
-    leftSpeed = -0.5 * xbox.getY(Hand.kLeft);
-    rightSpeed = -0.5 * xbox.getY(Hand.kRight);
+    // stick forward is negative
+    leftSpeed = leftInput.process(-xbox.getY(Hand.kLeft), getPeriod());
+    rightSpeed = rightInput.process(-xbox.getY(Hand.kRight), getPeriod());
+
+    // hold a straight line when both sticks ask for the same speed
+    straightAssist.apply(leftSpeed, rightSpeed, velocity.getLeftVelocity(), velocity.getRightVelocity());
+    leftSpeed = straightAssist.getLeft();
+    rightSpeed = straightAssist.getRight();
+
+    // we can't see obstacles in a direction whose sensor is stale, so creep instead
+    if (((leftSpeed > 0.0 || rightSpeed > 0.0) && !frontRange.isFresh())
+        || ((leftSpeed < 0.0 || rightSpeed < 0.0) && !rearRange.isFresh())) {
+      leftSpeed = capSpeed(leftSpeed, BLIND_SPEED_CAP);
+      rightSpeed = capSpeed(rightSpeed, BLIND_SPEED_CAP);
+    }
 
-    if (safetyStop(safeDistance, frontUltrasonic) && (leftSpeed > 0.0) && (rightSpeed > 0.0)) {
+    if (safetyStop(safeDistance.get(), frontRange) && (leftSpeed > 0.0) && (rightSpeed > 0.0)) {
       drive.stopMotor();
-    } else if (safetyStop(safeDistance, rearUltrasonic) && (leftSpeed < 0.0) && (rightSpeed < 0.0)) {
+    } else if (safetyStop(safeDistance.get(), rearRange) && (leftSpeed < 0.0) && (rightSpeed < 0.0)) {
       drive.stopMotor();
     } else {
-      // otherwise, set motors according to joysticks
-      drive.tankDrive(leftSpeed, rightSpeed);
+      // otherwise, set motors according to joysticks; the pipeline already
+      // shaped them, so don't let tankDrive square them again
+      drive.tankDrive(leftSpeed, rightSpeed, false);
+      inputLatency.outputWritten(Timer.getFPGATimestamp());
     }
   }
 
@@ -284,11 +549,39 @@ public class Macadamia extends TimedRobot {
   public void testPeriodic() {
   }
 
+  // Hardware is created through these so the simulated loop scenarios
+  // (src/perf) can substitute fakes for the real devices.
+
+  Talon createMotor(int channel) {
+    return new Talon(channel);
+  }
+
+  Ultrasonic createUltrasonic(int pingChannel, DigitalInput echo) {
+    return new Ultrasonic(new DigitalOutput(pingChannel), echo);
+  }
+
+  // Counts completed echoes (falling edges) so MonitoredRangeSensor can tell a new range from
+  // an old one even when both are the same distance.
+  IntSupplier createEchoCounter(DigitalInput echo) {
+    Counter counter = new Counter(echo);
+    counter.setUpSourceEdge(false, true);
+    return counter::get;
+  }
+
+  Encoder createEncoder(int channelA, int channelB, boolean reversed) {
+    return new Encoder(channelA, channelB, reversed);
+  }
+
+  XboxController createController(int port) {
+    return new XboxController(port);
+  }
+
   // Use Ultrasonic2537 sensor to stop robot
-  // if it gets too close to an obstacle
-  public boolean safetyStop(double safeDistance, Ultrasonic sensor) {
+  // if it gets too close to an obstacle. A stale sensor never
+  // triggers a stop; callers cap speed for that case instead.
+  public boolean safetyStop(double safeDistance, MonitoredRangeSensor sensor) {
 
-    if (sensor == null) // no Ultrasonic2537 sensor working
+    if (sensor == null || !sensor.isFresh()) // no Ultrasonic2537 sensor working
       return false;
 
     double distance = sensor.getRangeInches();
@@ -298,41 +591,50 @@ public class Macadamia extends TimedRobot {
       return false;
   }
 
+  // Limit speed to +/- cap, keeping its sign
+  private double capSpeed(double speed, double cap) {
+    return Math.max(-cap, Math.min(cap, speed));
+  }
+
      /**
    * Drive forward the specified number of inches. Assume circumfrence of drive wheels is 23.75 inches
    */ 
   public void driveForward(int distance) {
-    leftEnc.reset();
-    rightEnc.reset();
-    driveEncoderInThread(distance, distance, 0.47, 0.5);
+    resetEncoders();
+    driveEncoderInThread(distance, distance, driveAroundLeftSpeed.get(), driveAroundRightSpeed.get());
   }
 
   /**
    * Turn the robot 90 degrees to the left in place.
    */ 
   public void turnRight() {
-    leftEnc.reset();
-    rightEnc.reset();
-    driveEncoderInThread(250, -250, 0.47, -0.5);
+    resetEncoders();
+    driveEncoderInThread(driveAroundTurnCounts.get(), -driveAroundTurnCounts.get(), driveAroundLeftSpeed.get(), -driveAroundRightSpeed.get());
   }
 
   /**
    * Drive backward the specified number of inches. Assume circumfrence of drive wheels is 23.75 inches
    */ 
   public void driveBackward(int distance) {
-    leftEnc.reset();
-    rightEnc.reset();
+    resetEncoders();
 
-    driveEncoderInThread(distance, distance, -0.47, -0.5);
+    driveEncoderInThread(distance, distance, -driveAroundLeftSpeed.get(), -driveAroundRightSpeed.get());
   }
 
    /**
    * Turn the robot 90 degrees to the right in place.
    */ 
   public void turnLeft() {
-    leftEnc.reset();
-    rightEnc.reset();
-    driveEncoderInThread(-250, 250, -0.47, 0.5);
+    resetEncoders();
+    driveEncoderInThread(-driveAroundTurnCounts.get(), driveAroundTurnCounts.get(), -driveAroundLeftSpeed.get(), driveAroundRightSpeed.get());
+  }
+
+  /**
+   * Zero both encoders and drop the velocity history that spans the reset.
+   * Called from both the main loop and DriveAround.
+   */
+  private void resetEncoders() {
+    velocity.resetEncoders();
   }
 
   /**
@@ -340,7 +642,12 @@ public class Macadamia extends TimedRobot {
    * Can turn by using negative and positive speed values.
    */
   void driveEncoder(int leftDistance, int rightDistance, double leftSpeed, double rightSpeed) {
-    if ((Math.abs(leftEnc.getRaw()) < Math.abs(leftDistance))
+    if (!leftEncHealth.isFresh() || !rightEncHealth.isFresh()) {
+      // an encoder stopped counting, so we'd never reach the stop point; give up the move
+      drive.tankDrive(0.0, 0.0);
+      this.stopLeft = 0;
+      this.stopRight = 0;
+    } else if ((Math.abs(leftEnc.getRaw()) < Math.abs(leftDistance))
         || (Math.abs(rightEnc.getRaw()) < Math.abs(rightDistance))) {
       // System.out.println("left" + leftEnc.getRaw() + "right" + rightEnc.getRaw());
      // if (Math.abs(leftEnc.getRaw()) >= Math.abs(leftDistance)) {
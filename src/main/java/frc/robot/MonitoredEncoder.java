@@ -0,0 +1,81 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import edu.wpi.first.wpilibj.Encoder;
+
+/**
+ * Encoder wrapped with freshness tracking. An encoder has no "valid" flag; the way it fails is by
+ * not counting, e.g. an unplugged cable. So the encoder is considered fresh whenever its count
+ * moves, or when the motor on its side isn't being driven hard enough to move it. A side that is
+ * commanded but doesn't count for longer than the deadline goes stale.
+ *
+ * <p>Only {@link #update(double, double)} touches the hardware. Threads other than the main loop
+ * (like DriveAround) may keep reading the {@link Encoder} directly.
+ */
+public class MonitoredEncoder {
+  // Commanded output below this doesn't reliably overcome static friction.
+  private static final double kMovingOutput = 0.2;
+
+  private final Encoder m_encoder;
+  private final SensorHealth m_health;
+
+  private int m_lastCount;
+  private boolean m_first = true;
+
+  /**
+   * Wrap an encoder.
+   *
+   * @param name       Name the health state is published under.
+   * @param encoder    The encoder to wrap.
+   * @param staleAfter Time (sec) the side may be driven without counting before it is stale.
+   */
+  public MonitoredEncoder(String name, Encoder encoder, double staleAfter) {
+    m_encoder = encoder;
+    m_health = new SensorHealth(name, staleAfter);
+  }
+
+  /**
+   * Sample the encoder and update its health. Call once per loop.
+   *
+   * @param now             Current FPGA timestamp (sec).
+   * @param commandedOutput Motor output currently commanded on this encoder's side.
+   * @return true if the encoder is fresh
+   */
+  public boolean update(double now, double commandedOutput) {
+    int count = m_encoder.getRaw();
+    if (m_first || count != m_lastCount || Math.abs(commandedOutput) < kMovingOutput) {
+      m_health.markUpdate(now);
+    }
+    m_first = false;
+    m_lastCount = count;
+    return m_health.check(now);
+  }
+
+  /**
+   * Get the count from the last {@link #update(double, double)}.
+   *
+   * @return raw encoder count
+   */
+  public int getRaw() {
+    return m_lastCount;
+  }
+
+  /**
+   * Is the encoder counting as expected.
+   *
+   * @return true if the encoder is fresh
+   */
+  public boolean isFresh() {
+    return !m_health.isStale();
+  }
+
+  public SensorHealth getHealth() {
+    return m_health;
+  }
+}
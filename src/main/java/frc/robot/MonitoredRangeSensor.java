@@ -0,0 +1,143 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+
+import edu.wpi.first.wpilibj.Ultrasonic;
+
+/**
+ * Ultrasonic rangefinder wrapped with freshness tracking. Both {@link Ultrasonic} and
+ * {@link Ultrasonic2537} return 0 when they have no valid range, which callers used to read as
+ * "obstacle right in front of us". This wrapper samples the sensor once per loop with
+ * {@link #update(double)} and only accepts ranges that are valid.
+ *
+ * <p>With nothing in front of it an SRF04/HC-SR04 still answers every ping, with a ~36-38 ms
+ * "no echo" pulse (~240-260 in). That is a good reading meaning "clear", so anything past the
+ * working range is clamped to it and keeps the sensor fresh. Only ranges too short to be real
+ * count as errors.
+ *
+ * <p>{@link Ultrasonic2537} pushes each completed echo to us through its range listener, so its
+ * samples are exact. {@link Ultrasonic} doesn't tell us when a new echo came back, so for it a new
+ * sample is detected by a separate counter on the echo line advancing. The range itself is no
+ * use for this: a robot parked in front of a wall gets the same period ping after ping.
+ */
+public class MonitoredRangeSensor {
+  // Shorter than this (in) is a spurious echo, not a real range.
+  private static final double kMinRangeInches = 1.0;
+  // Working range (in); longer ranges, including "no echo", read as this.
+  private static final double kMaxRangeInches = 200.0;
+
+  private final BooleanSupplier m_valid;
+  private final DoubleSupplier m_range;
+  private final IntSupplier m_echoCount;
+  private final SensorHealth m_health;
+
+  private volatile double m_rangeInches;
+
+  // Written by the Ultrasonic2537 checker thread; the count is written last to publish a sample.
+  private volatile double m_pushedRange;
+  private volatile double m_pushedTimestamp;
+  private volatile int m_pushedCount;
+  private int m_seenCount;
+
+  private MonitoredRangeSensor(String name, BooleanSupplier valid, DoubleSupplier range,
+      IntSupplier echoCount, double staleAfter) {
+    m_valid = valid;
+    m_range = range;
+    m_echoCount = echoCount;
+    m_health = new SensorHealth(name, staleAfter);
+  }
+
+  /**
+   * Wrap a WPILib ultrasonic sensor.
+   *
+   * @param name       Name the health state is published under.
+   * @param sensor     The sensor to wrap.
+   * @param echoCount  Count of completed echoes (falling edges on the sensor's echo line).
+   * @param staleAfter Time (sec) without a new range after which the sensor is stale.
+   */
+  public MonitoredRangeSensor(String name, Ultrasonic sensor, IntSupplier echoCount,
+      double staleAfter) {
+    this(name, sensor::isRangeValid, sensor::getRangeInches, echoCount, staleAfter);
+  }
+
+  /**
+   * Wrap an Ultrasonic2537 sensor.
+   *
+   * @param name       Name the health state is published under.
+   * @param sensor     The sensor to wrap.
+   * @param staleAfter Time (sec) without a new range after which the sensor is stale.
+   */
+  public MonitoredRangeSensor(String name, Ultrasonic2537 sensor, double staleAfter) {
+    this(name, null, null, null, staleAfter);
+    sensor.addRangeListener(this::rangeReceived);
+  }
+
+  private void rangeReceived(int sensorId, double rangeInches, double timestamp) {
+    m_pushedRange = rangeInches;
+    m_pushedTimestamp = timestamp;
+    m_pushedCount++;
+  }
+
+  /**
+   * Sample the sensor and update its health. Call once per loop before reading the range.
+   *
+   * @param now Current FPGA timestamp (sec).
+   * @return true if the sensor is fresh
+   */
+  public boolean update(double now) {
+    if (m_valid == null) {
+      int count = m_pushedCount;
+      if (count != m_seenCount) {
+        m_seenCount = count;
+        accept(m_pushedRange, m_pushedTimestamp);
+      }
+    } else {
+      int count = m_echoCount.getAsInt();
+      if (count != m_seenCount && m_valid.getAsBoolean()) {
+        m_seenCount = count;
+        accept(m_range.getAsDouble(), now);
+      }
+    }
+    return m_health.check(now);
+  }
+
+  private void accept(double range, double timestamp) {
+    if (range >= kMinRangeInches) {
+      m_rangeInches = Math.min(range, kMaxRangeInches);
+      m_health.markUpdate(timestamp);
+    } else {
+      m_health.markError(timestamp);
+    }
+  }
+
+  /**
+   * Get the last accepted range. Only meaningful while {@link #isFresh()} is true.
+   *
+   * @return range in inches
+   */
+  public double getRangeInches() {
+    return m_rangeInches;
+  }
+
+  /**
+   * Is the last accepted range recent enough to act on.
+   *
+   * @return true if the sensor is fresh
+   */
+  public boolean isFresh() {
+    return !m_health.isStale();
+  }
+
+  public SensorHealth getHealth() {
+    return m_health;
+  }
+}
@@ -0,0 +1,261 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.wpilibj.DriverStation;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Tuning parameters that can be changed without redeploying. Values come from a properties file
+ * (one {@code key = value} per line) in the deploy directory, and can then be overridden live
+ * from a NetworkTables table. Editing the file on the RIO also takes effect: it is checked for
+ * changes about once a second. Taking a key out of the file puts that parameter back to its
+ * default.
+ *
+ * <p>Each parameter is registered once and handed back as a handle. Reading a handle in the loop
+ * is a plain volatile field read; the key is only looked up when a new value arrives. Register
+ * every parameter before calling {@link #start(File, String)}.
+ *
+ * <p>Change listeners run on the main robot thread from {@link #poll(double)}, never on the
+ * NetworkTables thread, so they can safely rebuild anything the loop uses.
+ */
+public class ParameterStore {
+  // Time (sec) between checks of the parameter file for changes.
+  private static final double kFileCheckPeriod = 1.0;
+
+  /**
+   * Handle to a parameter with a double value.
+   */
+  public static final class DoubleParameter extends Parameter {
+    private volatile double m_value;
+
+    private DoubleParameter(String key, double defaultValue) {
+      super(key, defaultValue);
+      m_value = defaultValue;
+    }
+
+    public double get() {
+      return m_value;
+    }
+
+    @Override
+    boolean set(double value) {
+      if (value == m_value) {
+        return false;
+      }
+      m_value = value;
+      return true;
+    }
+
+    @Override
+    double getAsDouble() {
+      return m_value;
+    }
+  }
+
+  /**
+   * Handle to a parameter with an integer value. Values that arrive as doubles are rounded.
+   */
+  public static final class IntParameter extends Parameter {
+    private volatile int m_value;
+
+    private IntParameter(String key, int defaultValue) {
+      super(key, defaultValue);
+      m_value = defaultValue;
+    }
+
+    public int get() {
+      return m_value;
+    }
+
+    @Override
+    boolean set(double value) {
+      final int rounded = (int) Math.round(value);
+      if (rounded == m_value) {
+        return false;
+      }
+      m_value = rounded;
+      return true;
+    }
+
+    @Override
+    double getAsDouble() {
+      return m_value;
+    }
+  }
+
+  private abstract static class Parameter {
+    final String m_key;
+    final double m_default;
+
+    Parameter(String key, double defaultValue) {
+      m_key = key;
+      m_default = defaultValue;
+    }
+
+    abstract boolean set(double value);
+
+    abstract double getAsDouble();
+  }
+
+  private final Map<String, Parameter> m_parameters = new HashMap<>();
+  private final List<Runnable> m_listeners = new ArrayList<>();
+  // keys the last file load set, so keys taken out of the file can go back to their defaults
+  private Set<String> m_fileKeys = new HashSet<>();
+  private volatile boolean m_changed;
+
+  private File m_file;
+  private long m_fileModified;
+  private double m_lastFileCheck;
+  private NetworkTable m_table;
+
+  /**
+   * Register a parameter with a double value.
+   *
+   * @param key          Key in the parameter file and NetworkTables.
+   * @param defaultValue Value used when neither source sets it.
+   * @return the handle to read the parameter through
+   */
+  public DoubleParameter addDouble(String key, double defaultValue) {
+    return register(new DoubleParameter(key, defaultValue));
+  }
+
+  /**
+   * Register a parameter with an integer value.
+   *
+   * @param key          Key in the parameter file and NetworkTables.
+   * @param defaultValue Value used when neither source sets it.
+   * @return the handle to read the parameter through
+   */
+  public IntParameter addInt(String key, int defaultValue) {
+    return register(new IntParameter(key, defaultValue));
+  }
+
+  private <T extends Parameter> T register(T parameter) {
+    if (m_table != null) {
+      throw new IllegalStateException("Parameters must be registered before the store starts");
+    }
+    if (m_parameters.putIfAbsent(parameter.m_key, parameter) != null) {
+      throw new IllegalArgumentException("Duplicate parameter " + parameter.m_key);
+    }
+    return parameter;
+  }
+
+  /**
+   * Add a listener that is run on the main robot thread, from {@link #poll(double)}, after any
+   * parameter changes.
+   *
+   * @param listener The listener to add.
+   */
+  public void addChangeListener(Runnable listener) {
+    m_listeners.add(requireNonNull(listener, "Provided listener was null"));
+  }
+
+  /**
+   * Load the parameter file, then publish every parameter to NetworkTables and start taking
+   * overrides from there.
+   *
+   * @param file      The parameter file. It is fine if it doesn't exist.
+   * @param tableName NetworkTables table to publish to and take overrides from.
+   */
+  public void start(File file, String tableName) {
+    m_file = file;
+    loadFile();
+    m_table = NetworkTableInstance.getDefault().getTable(tableName);
+    for (Parameter parameter : m_parameters.values()) {
+      m_table.getEntry(parameter.m_key).setDouble(parameter.getAsDouble());
+    }
+    m_table.addEntryListener((table, key, entry, value, flags) -> {
+      final Parameter parameter = m_parameters.get(key);
+      if (parameter != null && value.isDouble() && parameter.set(value.getDouble())) {
+        m_changed = true;
+      }
+    }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+    m_changed = false;
+  }
+
+  /**
+   * Reload the parameter file if it changed and run the change listeners if anything changed.
+   * Call once per loop from the main robot thread.
+   *
+   * @param now Current FPGA timestamp (sec).
+   */
+  public void poll(double now) {
+    if (m_file != null && now - m_lastFileCheck >= kFileCheckPeriod) {
+      m_lastFileCheck = now;
+      if (m_file.lastModified() != m_fileModified) {
+        loadFile();
+      }
+    }
+    if (m_changed) {
+      m_changed = false;
+      for (Runnable listener : m_listeners) {
+        listener.run();
+      }
+    }
+  }
+
+  private void loadFile() {
+    m_fileModified = m_file.lastModified();
+    final Properties properties = new Properties();
+    if (m_file.isFile()) {
+      try (InputStream in = new FileInputStream(m_file)) {
+        properties.load(in);
+      } catch (IOException ex) {
+        DriverStation.reportWarning("Could not read " + m_file + ": " + ex.getMessage(), false);
+        return;
+      }
+    }
+    final Set<String> fileKeys = new HashSet<>();
+    for (String key : properties.stringPropertyNames()) {
+      final Parameter parameter = m_parameters.get(key);
+      if (parameter == null) {
+        DriverStation.reportWarning("Unknown parameter " + key + " in " + m_file, false);
+        continue;
+      }
+      fileKeys.add(key); // a bad value keeps whatever the parameter had
+      try {
+        set(parameter, Double.parseDouble(properties.getProperty(key).trim()));
+      } catch (NumberFormatException ex) {
+        DriverStation.reportWarning("Bad value for parameter " + key + " in " + m_file, false);
+      }
+    }
+    for (String key : m_fileKeys) {
+      if (!fileKeys.contains(key)) {
+        final Parameter parameter = m_parameters.get(key);
+        set(parameter, parameter.m_default);
+      }
+    }
+    m_fileKeys = fileKeys;
+  }
+
+  private void set(Parameter parameter, double value) {
+    if (parameter.set(value)) {
+      m_changed = true;
+      if (m_table != null) {
+        m_table.getEntry(parameter.m_key).setDouble(parameter.getAsDouble());
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Threads;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Every robot thread is created here, with a name and a priority class, so we know what is
+ * running on the RIO's two cores and the control loop gets first claim on them. Threads we don't
+ * create ourselves but whose code we own join with {@link #registerCurrent(Priority)}: the main
+ * robot thread, and the Notifier thread behind EncoderVelocityEstimator.
+ *
+ * <p>Threads WPILib starts for itself are not covered: the DriverStation data thread,
+ * NetworkTables' native threads and the camera server keep the priorities WPILib gives them.
+ *
+ * <p>Once {@link #startMonitor()} is called, a background thread samples the CPU time of every
+ * JVM thread once a second and publishes each one's share of the CPU under "Threads/" on the
+ * dashboard. For threads created here it also publishes how often per second the kernel
+ * preempted them (involuntary context switches, from /proc), which is the best sign that a
+ * thread isn't getting the CPU when it wants it. Threads started natively, like the camera
+ * server's, aren't visible to the JVM and don't show up. A thread's entries are removed once it
+ * exits, so threads started over and over (like DriveAround) don't pile up on the dashboard.
+ */
+public final class RobotThreads {
+  // Time (sec) between CPU samples
+  private static final double kMonitorPeriod = 1.0;
+
+  /**
+   * Priority classes, from most to least important.
+   */
+  public enum Priority {
+    /**
+     * The main robot loop.
+     */
+    kControl(true, 20),
+    /**
+     * Threads that feed the loop fresh data and sleep most of the time. They must never spin.
+     */
+    kSensor(true, 10),
+    /**
+     * Everything else, including anything that busy-waits.
+     */
+    kBackground(false, 0);
+
+    private final boolean m_realTime;
+    private final int m_priority;
+
+    Priority(boolean realTime, int priority) {
+      m_realTime = realTime;
+      m_priority = priority;
+    }
+  }
+
+  /**
+   * A thread created through the registry.
+   */
+  private static final class Entry {
+    final Thread m_thread;
+    final Priority m_priority;
+    volatile Path m_status;
+
+    Entry(Thread thread, Priority priority) {
+      m_thread = thread;
+      m_priority = priority;
+    }
+  }
+
+  private static final List<Entry> m_threads = new CopyOnWriteArrayList<>();
+  private static boolean m_monitorStarted;
+
+  private RobotThreads() {
+  }
+
+  /**
+   * Create a thread in the given priority class. The thread is a daemon, so it never keeps the
+   * robot program alive, and it sets its own OS priority when it starts. Call start() on it.
+   *
+   * @param name     Thread name, shown on the dashboard.
+   * @param priority Priority class.
+   * @param body     What the thread runs.
+   * @return the new, unstarted thread
+   */
+  public static Thread create(String name, Priority priority, Runnable body) {
+    final Entry[] entry = new Entry[1];
+    final Thread thread = new Thread(() -> {
+      enter(entry[0]);
+      try {
+        body.run();
+      } finally {
+        m_threads.remove(entry[0]);
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.setPriority(priority.m_realTime ? Thread.MAX_PRIORITY : Thread.NORM_PRIORITY);
+    entry[0] = new Entry(thread, priority);
+    m_threads.add(entry[0]);
+    return thread;
+  }
+
+  /**
+   * Put the calling thread, e.g. the main robot thread or a Notifier's, in a priority class.
+   * Call once per thread.
+   *
+   * @param priority Priority class.
+   */
+  public static void registerCurrent(Priority priority) {
+    final Entry entry = new Entry(Thread.currentThread(), priority);
+    m_threads.add(entry);
+    enter(entry);
+  }
+
+  private static void enter(Entry entry) {
+    if (!Threads.setCurrentThreadPriority(entry.m_priority.m_realTime,
+        entry.m_priority.m_priority)) {
+      DriverStation.reportWarning("Could not set priority of " + entry.m_thread.getName(),
+          false);
+    }
+    entry.m_status = findStatusFile();
+  }
+
+  // /proc/thread-self links to this thread's /proc/<pid>/task/<tid>
+  private static Path findStatusFile() {
+    try {
+      return Paths.get("/proc").resolve(Files.readSymbolicLink(Paths.get("/proc/thread-self")))
+          .resolve("status");
+    } catch (IOException | UnsupportedOperationException ex) {
+      return null; // not Linux; no context switch counts
+    }
+  }
+
+  /**
+   * Start publishing per-thread CPU use. Only the first call does anything.
+   */
+  public static synchronized void startMonitor() {
+    if (m_monitorStarted) {
+      return;
+    }
+    m_monitorStarted = true;
+    create("RobotThreads", Priority.kBackground, new Monitor()).start();
+  }
+
+  /**
+   * Samples thread CPU time and context switches and publishes the deltas.
+   */
+  private static final class Monitor implements Runnable {
+    private final ThreadMXBean m_bean = ManagementFactory.getThreadMXBean();
+    private final int m_processors = Runtime.getRuntime().availableProcessors();
+    private final Map<Long, Long> m_lastCpu = new HashMap<>();
+    private final Map<Thread, Long> m_lastSwitches = new HashMap<>();
+    // thread names with entries on the dashboard, so exited threads' entries can be removed
+    private Set<String> m_published = new HashSet<>();
+
+    @Override
+    public void run() {
+      if (!m_bean.isThreadCpuTimeSupported()) {
+        DriverStation.reportWarning("Thread CPU time not supported; not monitoring threads",
+            false);
+        return;
+      }
+      m_bean.setThreadCpuTimeEnabled(true);
+      long lastWall = System.nanoTime();
+      while (true) {
+        try {
+          Thread.sleep((long) (kMonitorPeriod * 1000));
+        } catch (InterruptedException ex) {
+          return;
+        }
+        final long wall = System.nanoTime();
+        sample(wall - lastWall);
+        lastWall = wall;
+      }
+    }
+
+    private void sample(long wallNanos) {
+      final double capacity = (double) wallNanos * m_processors;
+      double used = 0.0;
+      final Map<Long, Long> cpu = new HashMap<>();
+      final Set<String> published = new HashSet<>();
+      for (ThreadInfo info : m_bean.getThreadInfo(m_bean.getAllThreadIds())) {
+        if (info == null) {
+          continue; // died since the id list was taken
+        }
+        final long id = info.getThreadId();
+        final long time = m_bean.getThreadCpuTime(id);
+        if (time < 0) {
+          continue;
+        }
+        cpu.put(id, time);
+        final Long last = m_lastCpu.get(id);
+        if (last != null) {
+          final double share = (time - last) / capacity * 100.0;
+          used += share;
+          SmartDashboard.putNumber("Threads/" + info.getThreadName() + "/CPU %", share);
+          published.add(info.getThreadName());
+        }
+      }
+      m_lastCpu.clear();
+      m_lastCpu.putAll(cpu);
+      SmartDashboard.putNumber("Threads/Idle %", Math.max(0.0, 100.0 - used));
+
+      final Map<Thread, Long> allSwitches = new HashMap<>();
+      for (Entry entry : m_threads) {
+        final long switches = readInvoluntarySwitches(entry.m_status);
+        if (switches < 0) {
+          continue;
+        }
+        allSwitches.put(entry.m_thread, switches);
+        final Long last = m_lastSwitches.get(entry.m_thread);
+        if (last != null) {
+          SmartDashboard.putNumber("Threads/" + entry.m_thread.getName() + "/Preempted per sec",
+              (switches - last) / (wallNanos * 1e-9));
+          published.add(entry.m_thread.getName());
+        }
+      }
+      m_lastSwitches.clear();
+      m_lastSwitches.putAll(allSwitches);
+
+      for (String name : m_published) {
+        if (!published.contains(name)) {
+          SmartDashboard.delete("Threads/" + name + "/CPU %");
+          SmartDashboard.delete("Threads/" + name + "/Preempted per sec");
+        }
+      }
+      m_published = published;
+    }
+
+    private long readInvoluntarySwitches(Path status) {
+      if (status == null) {
+        return -1;
+      }
+      try {
+        for (String line : Files.readAllLines(status)) {
+          if (line.startsWith("nonvoluntary_ctxt_switches:")) {
+            return Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+          }
+        }
+      } catch (IOException | NumberFormatException ex) {
+        // thread has exited
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Shared-memory channel between the robot program and coprocessor processes on the same machine.
+ * Both sides map the same small file (normally under /dev/shm) and exchange two fixed-layout
+ * records through it: the robot's sensor state, written once per loop, and a result record the
+ * coprocessor writes back. Nothing is serialized and nothing is allocated per update.
+ *
+ * <p>Each record is guarded by a seqlock. The writer makes the sequence number odd, writes the
+ * fields, then makes it even again; a reader retries if the sequence was odd or changed while it
+ * copied the fields. Each record has exactly one writer: the robot for {@link RobotState}, a
+ * single coprocessor for {@link CoprocessorResult}.
+ *
+ * <p>A reader never waits on the other process. The writer may die halfway through a write and
+ * leave its sequence odd for good, so a read gives up after a few attempts and reports
+ * {@link #kNoRecord}; the caller keeps whatever it read last. A writer that starts up and finds
+ * its sequence odd moves it straight on to the next odd value, so readers see the record change.
+ *
+ * <p>This class only uses the JDK, so coprocessor code can use it without WPILib. All values are
+ * little endian. Layout (byte offsets):
+ *
+ * <pre>
+ *   0 int    magic 'MCDB'
+ *   4 int    layout version
+ *  64 int    robot state sequence
+ *  72 long   monotonic time (ns, System.nanoTime) when written
+ *  80 double FPGA timestamp (sec)
+ *  88 double pose x (in), 96 pose y (in), 104 pose heading (rad)
+ * 112 int    left encoder count, 116 right encoder count
+ * 120 double front range (in), 128 rear range (in)
+ * 136 double left motor output, 144 right motor output
+ * 152 int    flags (see STATE_* constants)
+ * 192 int    result sequence
+ * 196 int    result id
+ * 200 long   monotonic time (ns) when written
+ * 208 double result values[8]
+ * </pre>
+ */
+public class SensorBus implements AutoCloseable {
+  /**
+   * Where the robot program puts the bus unless told otherwise.
+   */
+  public static final String kDefaultPath = "/dev/shm/macadamia-sensor-bus";
+
+  public static final int STATE_ENABLED = 1;
+  public static final int STATE_AUTONOMOUS = 1 << 1;
+  public static final int STATE_FRONT_FRESH = 1 << 2;
+  public static final int STATE_REAR_FRESH = 1 << 3;
+
+  public static final int kResultValues = 8;
+
+  /**
+   * Returned by the reads when no consistent record could be read. It is odd, so it is never the
+   * sequence number of a record.
+   */
+  public static final int kNoRecord = -1;
+
+  // Attempts a read makes before giving up on a record that is being (or was left half) written.
+  private static final int kReadAttempts = 4;
+
+  private static final int kMagic = 0x4243444d; // "MCDB" little endian
+  private static final int kVersion = 1;
+  private static final int kSize = 512;
+
+  private static final int kMagicOffset = 0;
+  private static final int kVersionOffset = 4;
+
+  // robot state record, on its own cache line
+  private static final int kStateSeq = 64;
+  private static final int kStateNanos = 72;
+  private static final int kStateTimestamp = 80;
+  private static final int kPoseX = 88;
+  private static final int kPoseY = 96;
+  private static final int kPoseHeading = 104;
+  private static final int kLeftCount = 112;
+  private static final int kRightCount = 116;
+  private static final int kFrontRange = 120;
+  private static final int kRearRange = 128;
+  private static final int kLeftOutput = 136;
+  private static final int kRightOutput = 144;
+  private static final int kFlags = 152;
+
+  // coprocessor result record, on its own cache line
+  private static final int kResultSeq = 192;
+  private static final int kResultId = 196;
+  private static final int kResultNanos = 200;
+  private static final int kResultValuesOffset = 208;
+
+  private static final VarHandle kIntHandle =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * Snapshot of the robot's sensor state. Reuse one instance; it is filled in place.
+   */
+  public static final class RobotState {
+    public long monotonicNanos;
+    public double timestamp;
+    public double poseX;
+    public double poseY;
+    public double poseHeading;
+    public int leftCount;
+    public int rightCount;
+    public double frontRange;
+    public double rearRange;
+    public double leftOutput;
+    public double rightOutput;
+    public int flags;
+  }
+
+  /**
+   * Result written back by a coprocessor. What the id and values mean is up to the coprocessor
+   * and the robot code that reads them. Reuse one instance; it is filled in place.
+   */
+  public static final class CoprocessorResult {
+    public long monotonicNanos;
+    public int id;
+    public final double[] values = new double[kResultValues];
+  }
+
+  private final FileChannel m_channel;
+  private final ByteBuffer m_buffer;
+  // reads land here first, so a failed read leaves the caller's copy alone
+  private final RobotState m_stateScratch = new RobotState();
+  private final CoprocessorResult m_resultScratch = new CoprocessorResult();
+
+  private SensorBus(FileChannel channel, MappedByteBuffer buffer) {
+    m_channel = channel;
+    m_buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Map the bus, creating the file if needed. Either side may open it first.
+   *
+   * @param path File backing the shared memory.
+   * @return the mapped bus
+   * @throws IOException if the file can't be created or mapped, or holds a different layout
+   */
+  public static SensorBus open(Path path) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      final SensorBus bus = new SensorBus(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          kSize));
+      bus.checkHeader(path);
+      return bus;
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  private void checkHeader(Path path) throws IOException {
+    final int magic = m_buffer.getInt(kMagicOffset);
+    if (magic == 0) {
+      // fresh file, all zeros, so both sequences start even
+      m_buffer.putInt(kVersionOffset, kVersion);
+      m_buffer.putInt(kMagicOffset, kMagic);
+    } else if (magic != kMagic || m_buffer.getInt(kVersionOffset) != kVersion) {
+      throw new IOException(path + " is not a version " + kVersion + " sensor bus");
+    }
+  }
+
+  /**
+   * Write the robot state. Only the robot program may call this.
+   *
+   * @param state The state to write.
+   */
+  public void writeState(RobotState state) {
+    final int seq = beginWrite(kStateSeq);
+    m_buffer.putLong(kStateNanos, state.monotonicNanos);
+    m_buffer.putDouble(kStateTimestamp, state.timestamp);
+    m_buffer.putDouble(kPoseX, state.poseX);
+    m_buffer.putDouble(kPoseY, state.poseY);
+    m_buffer.putDouble(kPoseHeading, state.poseHeading);
+    m_buffer.putInt(kLeftCount, state.leftCount);
+    m_buffer.putInt(kRightCount, state.rightCount);
+    m_buffer.putDouble(kFrontRange, state.frontRange);
+    m_buffer.putDouble(kRearRange, state.rearRange);
+    m_buffer.putDouble(kLeftOutput, state.leftOutput);
+    m_buffer.putDouble(kRightOutput, state.rightOutput);
+    m_buffer.putInt(kFlags, state.flags);
+    endWrite(kStateSeq, seq);
+  }
+
+  /**
+   * Read the robot state. Gives up rather than wait if the robot is in the middle of a write.
+   *
+   * @param state Filled with the latest state. Left as it was if nothing could be read.
+   * @return the sequence number of the state read, which changes each time the robot writes, or
+   *         {@link #kNoRecord}
+   */
+  public int readState(RobotState state) {
+    final RobotState scratch = m_stateScratch;
+    for (int attempt = 0; attempt < kReadAttempts; attempt++) {
+      final int seq = (int) kIntHandle.getAcquire(m_buffer, kStateSeq);
+      if ((seq & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      scratch.monotonicNanos = m_buffer.getLong(kStateNanos);
+      scratch.timestamp = m_buffer.getDouble(kStateTimestamp);
+      scratch.poseX = m_buffer.getDouble(kPoseX);
+      scratch.poseY = m_buffer.getDouble(kPoseY);
+      scratch.poseHeading = m_buffer.getDouble(kPoseHeading);
+      scratch.leftCount = m_buffer.getInt(kLeftCount);
+      scratch.rightCount = m_buffer.getInt(kRightCount);
+      scratch.frontRange = m_buffer.getDouble(kFrontRange);
+      scratch.rearRange = m_buffer.getDouble(kRearRange);
+      scratch.leftOutput = m_buffer.getDouble(kLeftOutput);
+      scratch.rightOutput = m_buffer.getDouble(kRightOutput);
+      scratch.flags = m_buffer.getInt(kFlags);
+      if (endRead(kStateSeq, seq)) {
+        state.monotonicNanos = scratch.monotonicNanos;
+        state.timestamp = scratch.timestamp;
+        state.poseX = scratch.poseX;
+        state.poseY = scratch.poseY;
+        state.poseHeading = scratch.poseHeading;
+        state.leftCount = scratch.leftCount;
+        state.rightCount = scratch.rightCount;
+        state.frontRange = scratch.frontRange;
+        state.rearRange = scratch.rearRange;
+        state.leftOutput = scratch.leftOutput;
+        state.rightOutput = scratch.rightOutput;
+        state.flags = scratch.flags;
+        return seq;
+      }
+    }
+    return kNoRecord;
+  }
+
+  /**
+   * Write a coprocessor result. Only one coprocessor process may call this.
+   *
+   * @param result The result to write.
+   */
+  public void writeResult(CoprocessorResult result) {
+    final int seq = beginWrite(kResultSeq);
+    m_buffer.putInt(kResultId, result.id);
+    m_buffer.putLong(kResultNanos, result.monotonicNanos);
+    for (int i = 0; i < kResultValues; i++) {
+      m_buffer.putDouble(kResultValuesOffset + i * Double.BYTES, result.values[i]);
+    }
+    endWrite(kResultSeq, seq);
+  }
+
+  /**
+   * Read the latest coprocessor result. Gives up rather than wait if the coprocessor is in the
+   * middle of a write, or died in one. The robot reads this every loop, so it must never block.
+   *
+   * @param result Filled with the latest result. Left as it was if nothing could be read.
+   * @return the sequence number of the result read, 0 if the coprocessor never wrote one, or
+   *         {@link #kNoRecord}
+   */
+  public int readResult(CoprocessorResult result) {
+    final CoprocessorResult scratch = m_resultScratch;
+    for (int attempt = 0; attempt < kReadAttempts; attempt++) {
+      final int seq = (int) kIntHandle.getAcquire(m_buffer, kResultSeq);
+      if ((seq & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      scratch.id = m_buffer.getInt(kResultId);
+      scratch.monotonicNanos = m_buffer.getLong(kResultNanos);
+      for (int i = 0; i < kResultValues; i++) {
+        scratch.values[i] = m_buffer.getDouble(kResultValuesOffset + i * Double.BYTES);
+      }
+      if (endRead(kResultSeq, seq)) {
+        result.id = scratch.id;
+        result.monotonicNanos = scratch.monotonicNanos;
+        System.arraycopy(scratch.values, 0, result.values, 0, kResultValues);
+        return seq;
+      }
+    }
+    return kNoRecord;
+  }
+
+  private int beginWrite(int seqOffset) {
+    // always the next odd value, even if a dead writer left the sequence odd
+    final int seq = ((int) kIntHandle.get(m_buffer, seqOffset) + 1) | 1;
+    kIntHandle.setOpaque(m_buffer, seqOffset, seq);
+    VarHandle.storeStoreFence(); // odd sequence is visible before any field changes
+    return seq;
+  }
+
+  private void endWrite(int seqOffset, int seq) {
+    kIntHandle.setRelease(m_buffer, seqOffset, seq + 1);
+  }
+
+  private boolean endRead(int seqOffset, int seq) {
+    VarHandle.loadLoadFence(); // field reads finish before the sequence is checked again
+    return (int) kIntHandle.getOpaque(m_buffer, seqOffset) == seq;
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_channel.close();
+  }
+}
@@ -0,0 +1,150 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Freshness and health bookkeeping for a single sensor. The owner reports every good sample with
+ * {@link #markUpdate(double)} and every bad one with {@link #markError(double)}, then calls
+ * {@link #check(double)} once per loop. A sensor that has not produced a good sample within its
+ * staleness deadline is stale, and control code should stop trusting its readings.
+ *
+ * <p>Error and timeout counts are rolling: they accumulate over a fixed window and the totals of
+ * the last completed window are what gets reported, so a sensor that glitched once at the start
+ * of the match doesn't look sick for the rest of it.
+ */
+public class SensorHealth {
+  // Length (sec) of the window the error and timeout counters roll over.
+  private static final double kWindowSeconds = 5.0;
+
+  private final String m_name;
+  private final double m_staleAfter;
+
+  private double m_lastUpdate = Double.NEGATIVE_INFINITY;
+  private volatile boolean m_stale = true;
+
+  private double m_windowStart;
+  private int m_errors;
+  private int m_timeouts;
+  private int m_lastWindowErrors;
+  private int m_lastWindowTimeouts;
+  private int m_totalErrors;
+  private int m_totalTimeouts;
+
+  /**
+   * Create the health tracker for a sensor.
+   *
+   * @param name       Name the health state is published under on the dashboard.
+   * @param staleAfter Time (sec) without a good sample after which the sensor is stale.
+   */
+  public SensorHealth(String name, double staleAfter) {
+    m_name = name;
+    m_staleAfter = staleAfter;
+  }
+
+  /**
+   * Record a good sample.
+   *
+   * @param now FPGA timestamp (sec) of the sample.
+   */
+  public void markUpdate(double now) {
+    m_lastUpdate = now;
+    m_stale = false;
+  }
+
+  /**
+   * Record a bad sample, e.g. an invalid or implausible range.
+   *
+   * @param now FPGA timestamp (sec) of the sample.
+   */
+  public void markError(double now) {
+    roll(now);
+    m_errors++;
+    m_totalErrors++;
+  }
+
+  /**
+   * Re-evaluate staleness. Counts a timeout each time the sensor goes from fresh to stale.
+   *
+   * @param now Current FPGA timestamp (sec).
+   * @return true if the sensor is fresh
+   */
+  public boolean check(double now) {
+    roll(now);
+    boolean stale = now - m_lastUpdate > m_staleAfter;
+    if (stale && !m_stale) {
+      m_timeouts++;
+      m_totalTimeouts++;
+    }
+    m_stale = stale;
+    return !stale;
+  }
+
+  private void roll(double now) {
+    if (now - m_windowStart >= kWindowSeconds) {
+      m_lastWindowErrors = m_errors;
+      m_lastWindowTimeouts = m_timeouts;
+      m_errors = 0;
+      m_timeouts = 0;
+      m_windowStart = now;
+    }
+  }
+
+  /**
+   * Is the sensor stale, as of the last {@link #check(double)}.
+   *
+   * @return true if no good sample arrived within the staleness deadline
+   */
+  public boolean isStale() {
+    return m_stale;
+  }
+
+  /**
+   * Get the age of the last good sample.
+   *
+   * @param now Current FPGA timestamp (sec).
+   * @return seconds since the last good sample, infinite if there never was one
+   */
+  public double getAge(double now) {
+    return now - m_lastUpdate;
+  }
+
+  /**
+   * Get the number of errors in the last completed window.
+   *
+   * @return error count
+   */
+  public int getErrorCount() {
+    return m_lastWindowErrors;
+  }
+
+  /**
+   * Get the number of fresh-to-stale transitions in the last completed window.
+   *
+   * @return timeout count
+   */
+  public int getTimeoutCount() {
+    return m_lastWindowTimeouts;
+  }
+
+  /**
+   * Push the health state to the dashboard. This allocates key strings, so call it at a low rate
+   * (a few Hz), not every loop.
+   *
+   * @param now Current FPGA timestamp (sec).
+   */
+  public void publish(double now) {
+    SmartDashboard.putBoolean(m_name + "/Stale", m_stale);
+    SmartDashboard.putNumber(m_name + "/Age", Math.min(getAge(now), 999.0));
+    SmartDashboard.putNumber(m_name + "/Errors", m_lastWindowErrors);
+    SmartDashboard.putNumber(m_name + "/Timeouts", m_lastWindowTimeouts);
+    SmartDashboard.putNumber(m_name + "/TotalErrors", m_totalErrors);
+    SmartDashboard.putNumber(m_name + "/TotalTimeouts", m_totalTimeouts);
+  }
+}
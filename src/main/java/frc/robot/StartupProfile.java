@@ -0,0 +1,77 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Time spent in each phase of robot startup. Phases are timed with {@link #start()} and
+ * {@link #end(String, long)} and kept until {@link #report()} prints them, so timing doesn't add
+ * console output to the startup path. Phases can be timed from more than one thread.
+ *
+ * <p>Also records how long the JVM had been up when robotInit began, which covers JVM startup,
+ * class loading and HAL initialization.
+ */
+public class StartupProfile {
+  private static final int kMaxPhases = 32;
+
+  private final String[] m_phases = new String[kMaxPhases];
+  private final long[] m_nanos = new long[kMaxPhases];
+  private final long[] m_uptimeMillis = new long[kMaxPhases];
+  private int m_count;
+
+  /**
+   * Start timing a phase.
+   *
+   * @return the start time to pass to {@link #end(String, long)}
+   */
+  public long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Finish timing a phase.
+   *
+   * @param phase Name of the phase.
+   * @param start Value {@link #start()} returned when the phase began.
+   */
+  public synchronized void end(String phase, long start) {
+    if (m_count < kMaxPhases) {
+      m_phases[m_count] = phase;
+      m_nanos[m_count] = System.nanoTime() - start;
+      m_uptimeMillis[m_count] = uptimeMillis();
+      m_count++;
+    }
+  }
+
+  /**
+   * Record the time from JVM start until now as its own phase. Call first thing in robotInit.
+   */
+  public synchronized void markJvmStartup() {
+    end("JVM to robotInit", System.nanoTime() - uptimeMillis() * 1000000L);
+  }
+
+  /**
+   * Get how long the JVM has been running.
+   *
+   * @return milliseconds since JVM start
+   */
+  public static long uptimeMillis() {
+    return ManagementFactory.getRuntimeMXBean().getUptime();
+  }
+
+  /**
+   * Print every phase timed so far with its duration and the JVM uptime when it finished.
+   */
+  public synchronized void report() {
+    System.out.println("Startup profile (phase: duration ms, JVM uptime ms at end)");
+    for (int i = 0; i < m_count; i++) {
+      System.out.printf("  %-24s %8.1f %8d%n", m_phases[i], m_nanos[i] / 1e6, m_uptimeMillis[i]);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Keeps the robot straight when the driver is asking for straight. When both sticks are close
+ * together, the difference in the two sides' measured speeds is fed back to slow the faster side
+ * and speed up the slower one. Our sides never run at quite the same speed for the same output,
+ * so without this the robot curves.
+ */
+public class StraightDriveAssist {
+  // Largest correction (motor output) applied to each side
+  private static final double kMaxCorrection = 0.1;
+
+  private final DoubleSupplier m_gain;
+  private final DoubleSupplier m_tolerance;
+
+  private double m_left;
+  private double m_right;
+
+  /**
+   * Create the assist.
+   *
+   * @param gain      Correction (motor output) per count/sec of speed difference. Read on every
+   *                  call, so it can be tuned live.
+   * @param tolerance How close the two sides' commands must be to count as "straight". Also
+   *                  read on every call.
+   */
+  public StraightDriveAssist(DoubleSupplier gain, DoubleSupplier tolerance) {
+    m_gain = gain;
+    m_tolerance = tolerance;
+  }
+
+  /**
+   * Correct a pair of side commands. Read the results with {@link #getLeft()} and
+   * {@link #getRight()}.
+   *
+   * @param left          Left side command.
+   * @param right         Right side command.
+   * @param leftVelocity  Left side speed (counts/sec), positive forward.
+   * @param rightVelocity Right side speed (counts/sec), positive forward.
+   */
+  public void apply(double left, double right, double leftVelocity, double rightVelocity) {
+    m_left = left;
+    m_right = right;
+    if (left != 0.0 && Math.abs(left - right) <= m_tolerance.getAsDouble()) {
+      // driving forward the faster side has the larger velocity; backward, the more negative one
+      final double error = Math.signum(left) * (leftVelocity - rightVelocity);
+      final double correction = Math.max(-kMaxCorrection, Math.min(kMaxCorrection, m_gain.getAsDouble() * error));
+      m_left = left - Math.signum(left) * correction;
+      m_right = right + Math.signum(right) * correction;
+    }
+  }
+
+  public double getLeft() {
+    return m_left;
+  }
+
+  public double getRight() {
+    return m_right;
+  }
+}
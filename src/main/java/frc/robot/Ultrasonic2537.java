@@ -8,8 +8,7 @@
 //package edu.wpi.first.wpilibj;
 package frc.robot;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import edu.wpi.first.wpilibj.*;
 
 import edu.wpi.first.hal.FRCNetComm.tResourceType;
@@ -42,89 +41,241 @@ public class Ultrasonic2537 extends SendableBase implements PIDSource {
     kMillimeters
   }
 
+  /**
+   * Receives the range each time an echo completes. Listeners are called from the round-robin
+   * checker thread as soon as the echo lands, so they must be quick, must not block and should not
+   * allocate.
+   */
+  @FunctionalInterface
+  public interface RangeListener {
+    /**
+     * Called once per completed echo.
+     *
+     * @param sensorId    Id of the sensor that produced the range, see {@link #getSensorId()}.
+     * @param rangeInches Range in inches.
+     * @param timestamp   FPGA timestamp (sec) at which the echo was seen.
+     */
+    void rangeReceived(int sensorId, double rangeInches, double timestamp);
+  }
+
   // Time (sec) for the ping trigger pulse.
   private static final double kPingTime = 10 * 1e-6;
   private static final double kSpeedOfSoundInchesPerSec = 1130.0 * 12.0;
-  // Ultrasonic2537 sensor list
-  private static final List<Ultrasonic2537> m_sensors = new ArrayList<>();
+  // Time (sec) each sensor gets in the round robin before the next one is pinged.
+  private static final double kRoundRobinSlot = 0.1;
+  // Time (sec) between checks for a returned echo within a slot.
+  private static final double kEchoPollTime = 0.001;
+  private static final RangeListener[] kNoListeners = new RangeListener[0];
+  private static final Ultrasonic2537[] kNoSensors = new Ultrasonic2537[0];
+  // Guards changes to the sensor list and starting/stopping the round robin task
+  private static final Object m_sensorsLock = new Object();
+  // Ultrasonic2537 sensor list, copy on write so the checker and readers never wait on a change
+  private static volatile Ultrasonic2537[] m_sensors = kNoSensors;
   // automatic round robin mode
-  private static boolean m_automaticEnabled;
+  private static volatile boolean m_automaticEnabled;
+  // sensor the checker is pinging right now, so close() can wait for it to move on
+  private static volatile Ultrasonic2537 m_activeSensor;
   private DigitalInput m_echoChannel;
   private DigitalOutput m_pingChannel;
   private boolean m_allocatedChannels;
   private boolean m_enabled;
-  private Counter m_counter;
-  // task doing the round-robin automatic sensing
+  private volatile Transducer m_transducer;
+  private int m_sensorId;
+  // copy on write, so the checker can walk it without locking or allocating
+  private volatile RangeListener[] m_listeners = kNoListeners;
+  // task doing the round-robin automatic sensing; a new one is started each time automatic
+  // mode is turned on, since a Thread can only be started once
   private static Thread m_task;
   private Unit m_units;
   private static int m_instances;
   protected PIDSourceType m_pidSource = PIDSourceType.kDisplacement;
 
+  /**
+   * The hardware that fires a ping and times its echo. Real sensors use a digital output and a
+   * semi-period counter; the stress suite plugs in simulated ones so it can run more sensors
+   * than the RIO has counters.
+   */
+  interface Transducer {
+    /**
+     * Send the ping trigger pulse.
+     *
+     * @param pulseTime Length (sec) of the trigger pulse.
+     */
+    void ping(double pulseTime);
+
+    /**
+     * Get the number of echo edges seen since the last reset.
+     *
+     * @return the echo count
+     */
+    int getEchoCount();
+
+    /**
+     * Get the length of the last echo pulse.
+     *
+     * @return the round trip time (sec)
+     */
+    double getEchoPeriod();
+
+    /**
+     * Throw away the echo count and period, so no range is valid.
+     */
+    void reset();
+
+    /**
+     * Free the hardware.
+     */
+    void close();
+  }
+
+  /**
+   * Transducer driving a real sensor: pings through a digital output and times the echo with a
+   * counter in semi-period mode.
+   */
+  private static final class CounterTransducer implements Transducer {
+    private final DigitalOutput m_ping;
+    private final Counter m_counter;
+
+    CounterTransducer(DigitalOutput ping, Counter counter) {
+      m_ping = ping;
+      m_counter = counter;
+    }
+
+    @Override
+    public void ping(double pulseTime) {
+      m_ping.pulse(pulseTime);
+    }
+
+    @Override
+    public int getEchoCount() {
+      return m_counter.get();
+    }
+
+    @Override
+    public double getEchoPeriod() {
+      return m_counter.getPeriod();
+    }
+
+    @Override
+    public void reset() {
+      m_counter.reset();
+    }
+
+    @Override
+    public void close() {
+      m_counter.close();
+    }
+  }
+
   /**
    * Background task that goes through the list of Ultrasonic2537 sensors and pings each one in turn.
    * The counter is configured to read the timing of the returned echo pulse.
    *
-   * <p><b>DANGER WILL ROBINSON, DANGER WILL ROBINSON:</b> This code runs as a task and assumes that
-   * none of the Ultrasonic2537 sensors will change while it's running. If one does, then this will
-   * certainly break. Make sure to disable automatic mode before changing anything with the
-   * sensors!!
+   * <p>Each sensor gets a fixed slot and slots are scheduled on absolute time, so with N enabled
+   * sensors every sensor is pinged exactly once per N slots. Sensors can be added and removed
+   * while this runs: each slot takes a snapshot of the list, and close() waits for the slot
+   * using a sensor to end before releasing its hardware.
    */
-  private static class Ultrasonic2537Checker extends Thread {
+  private static class Ultrasonic2537Checker implements Runnable {
     @Override
-    public synchronized void run() {
+    public void run() {
       int sensorIndex = 0;
-      Ultrasonic2537 Ultrasonic2537;
+      Ultrasonic2537[] lastSensors = m_sensors;
+      Ultrasonic2537 lastSensor = null;
+      double slotEnd = Timer.getFPGATimestamp();
       while (m_automaticEnabled) {
-        //lock list to ensure deletion doesn't occur between empty check and retrieving sensor
-        synchronized (m_sensors) {
-          if (m_sensors.isEmpty()) {
-            return;
+        slotEnd += kRoundRobinSlot;
+        final Ultrasonic2537[] sensors = m_sensors;
+        if (sensors != lastSensors) {
+          // the list changed; carry on after the last sensor pinged so nobody is skipped or
+          // pinged twice. If that sensor was removed, its successor moved into its place.
+          sensorIndex = Math.max(sensorIndex - 1, 0);
+          for (int i = 0; i < sensors.length; i++) {
+            if (sensors[i] == lastSensor) {
+              sensorIndex = i + 1;
+              break;
+            }
           }
-          //if (sensorIndex >= m_sensors.size()) {
-           // sensorIndex = m_sensors.size() - 1;
-          //}
-          Ultrasonic2537 = m_sensors.get(sensorIndex);
-        }
-        if (Ultrasonic2537.isEnabled()) {
-          // Do the ping
-          Ultrasonic2537.m_pingChannel.pulse(kPingTime);
+          lastSensors = sensors;
         }
-        sensorIndex++;
-        if (sensorIndex >= m_sensors.size()) {
-          sensorIndex = 0;
+        if (sensors.length > 0) {
+          if (sensorIndex >= sensors.length) {
+            sensorIndex = 0;
+          }
+          final Ultrasonic2537 sensor = sensors[sensorIndex++];
+          lastSensor = sensor;
+          m_activeSensor = sensor;
+          // close() may have run between the snapshot and marking the sensor active
+          final Transducer transducer = sensor.m_transducer;
+          if (sensor.isEnabled() && transducer != null) {
+            final int count = transducer.getEchoCount();
+            // Do the ping
+            transducer.ping(kPingTime);
+            // watch for the echo so listeners hear about it as soon as it lands. The counter
+            // counts both edges and the echo line goes high as the ping leaves, so the echo
+            // has only landed (and the period been latched) once the count is up by 2.
+            while (Timer.getFPGATimestamp() < slotEnd) {
+              if (transducer.getEchoCount() - count >= 2) {
+                sensor.notifyListeners(Timer.getFPGATimestamp());
+                break;
+              }
+              Timer.delay(kEchoPollTime);
+            }
+          }
+          m_activeSensor = null;
         }
 
-        Timer.delay(.1); // wait for ping to return
+        final double now = Timer.getFPGATimestamp();
+        if (slotEnd > now) {
+          Timer.delay(slotEnd - now); // let the ping die out before the next sensor fires
+        } else if (now - slotEnd > kRoundRobinSlot) {
+          slotEnd = now; // fell badly behind (e.g. a GC pause); restart the schedule from now
+        }
       }
     }
   }
 
   /**
    * Initialize the Ultrasonic2537 Sensor. This is the common code that initializes the Ultrasonic2537
-   * sensor given that there are two digital I/O channels allocated. If the system was running in
-   * automatic mode (round robin) when the new sensor is added, it is stopped, the sensor is added,
-   * then automatic mode is restored.
+   * sensor given that there are two digital I/O channels allocated. The sensor joins the round
+   * robin on its next pass; automatic mode keeps running while it is added.
    */
-  private synchronized void initialize() {
-    if (m_task == null) {
-      m_task = new Ultrasonic2537Checker();
-    }
-    final boolean originalMode = m_automaticEnabled;
-    setAutomaticMode(false); // kill task when adding a new sensor
-    m_sensors.add(this);
-
-    m_counter = new Counter(m_echoChannel); // set up counter for this
-    addChild(m_counter);
+  private void initialize() {
+    final Counter counter = new Counter(m_echoChannel); // set up counter for this
+    addChild(counter);
     // sensor
-    m_counter.setMaxPeriod(1.0);
-    m_counter.setSemiPeriodMode(true);
-    m_counter.reset();
-    m_enabled = true; // make it available for round robin scheduling
-    setAutomaticMode(originalMode);
+    counter.setMaxPeriod(1.0);
+    counter.setSemiPeriodMode(true);
+    counter.reset();
 
     m_instances++;
     HAL.report(tResourceType.kResourceType_Ultrasonic, m_instances);
-    setName("Ultrasonic2537", m_echoChannel.getChannel());
+    m_sensorId = m_echoChannel.getChannel();
+    setName("Ultrasonic2537", m_sensorId);
+    register(new CounterTransducer(m_pingChannel, counter));
+  }
+
+  /**
+   * Create a sensor on simulated hardware. Used by the stress suite; it isn't reported to the
+   * HAL or given any digital channels.
+   *
+   * @param transducer The simulated hardware.
+   * @param sensorId   Id to report to range listeners.
+   */
+  Ultrasonic2537(Transducer transducer, int sensorId) {
+    m_units = Unit.kInches;
+    m_sensorId = sensorId;
+    register(transducer);
+  }
+
+  private void register(Transducer transducer) {
+    m_transducer = transducer;
+    m_enabled = true; // make it available for round robin scheduling
+    synchronized (m_sensorsLock) {
+      final Ultrasonic2537[] sensors = Arrays.copyOf(m_sensors, m_sensors.length + 1);
+      sensors[sensors.length - 1] = this;
+      m_sensors = sensors;
+    }
   }
 
   /**
@@ -198,15 +349,36 @@ public class Ultrasonic2537 extends SendableBase implements PIDSource {
 
   /**
    * Destructor for the Ultrasonic2537 sensor. Delete the instance of the Ultrasonic2537 sensor by freeing
-   * the allocated digital channels. If the system was in automatic mode (round robin), then it is
-   * stopped, then started again after this sensor is removed (provided this wasn't the last
-   * sensor).
+   * the allocated digital channels. Automatic mode (round robin) keeps running: the sensor is
+   * taken out of the list, and if the checker is in the middle of its slot this waits for the
+   * slot to end (at most one slot) before releasing the hardware.
    */
   @Override
   public synchronized void close() {
     super.close();
-    final boolean wasAutomaticMode = m_automaticEnabled;
-    setAutomaticMode(false);
+    synchronized (m_sensorsLock) {
+      final Ultrasonic2537[] sensors = m_sensors;
+      for (int i = 0; i < sensors.length; i++) {
+        if (sensors[i] == this) {
+          final Ultrasonic2537[] remaining = new Ultrasonic2537[sensors.length - 1];
+          System.arraycopy(sensors, 0, remaining, 0, i);
+          System.arraycopy(sensors, i + 1, remaining, i, sensors.length - i - 1);
+          m_sensors = remaining;
+          break;
+        }
+      }
+    }
+    m_listeners = kNoListeners;
+    final Transducer transducer = m_transducer;
+    m_transducer = null;
+    // the checker may still be in this sensor's slot; let it finish before freeing the hardware
+    while (m_activeSensor == this) {
+      Timer.delay(kEchoPollTime);
+    }
+    if (transducer != null) {
+      transducer.close();
+    }
+
     if (m_allocatedChannels) {
       if (m_pingChannel != null) {
         m_pingChannel.close();
@@ -216,19 +388,8 @@ public class Ultrasonic2537 extends SendableBase implements PIDSource {
       }
     }
 
-    if (m_counter != null) {
-      m_counter.close();
-      m_counter = null;
-    }
-
     m_pingChannel = null;
     m_echoChannel = null;
-    synchronized (m_sensors) {
-      m_sensors.remove(this);
-    }
-    if (!m_sensors.isEmpty() && wasAutomaticMode) {
-      setAutomaticMode(true);
-    }
   }
 
   /**
@@ -242,36 +403,45 @@ public class Ultrasonic2537 extends SendableBase implements PIDSource {
    *                 for the results to come back.
    */
   public void setAutomaticMode(boolean enabling) {
-    if (enabling == m_automaticEnabled) {
-      return; // ignore the case of no change
-    }
-    m_automaticEnabled = enabling;
-
-    if (enabling) {
-      /* Clear all the counters so no data is valid. No synchronization is
-       * needed because the background task is stopped.
-       */
-      for (Ultrasonic2537 u : m_sensors) {
-        u.m_counter.reset();
+    synchronized (m_sensorsLock) {
+      if (enabling == m_automaticEnabled) {
+        return; // ignore the case of no change
       }
+      m_automaticEnabled = enabling;
+
+      if (enabling) {
+        /* Clear all the counters so no data is valid. The background task
+         * isn't running yet.
+         */
+        resetAll();
+
+        // Start round robin task
+        m_task = RobotThreads.create("Ultrasonic2537Checker", RobotThreads.Priority.kSensor,
+            new Ultrasonic2537Checker());
+        m_task.start();
+      } else {
+        // Wait for background task to stop running
+        try {
+          m_task.join();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          ex.printStackTrace();
+        }
+        m_task = null;
 
-      // Start round robin task
-      m_task.start();
-    } else {
-      // Wait for background task to stop running
-      try {
-        m_task.join();
-      } catch (InterruptedException ex) {
-        Thread.currentThread().interrupt();
-        ex.printStackTrace();
+        /* Clear all the counters (data now invalid) since automatic mode is
+         * disabled. The background task is stopped.
+         */
+        resetAll();
       }
+    }
+  }
 
-      /* Clear all the counters (data now invalid) since automatic mode is
-       * disabled. No synchronization is needed because the background task is
-       * stopped.
-       */
-      for (Ultrasonic2537 u : m_sensors) {
-        u.m_counter.reset();
+  private static void resetAll() {
+    for (Ultrasonic2537 u : m_sensors) {
+      final Transducer transducer = u.m_transducer;
+      if (transducer != null) {
+        transducer.reset();
       }
     }
   }
@@ -285,20 +455,21 @@ public class Ultrasonic2537 extends SendableBase implements PIDSource {
   public void ping() {
     setAutomaticMode(false); // turn off automatic round robin if pinging
     // single sensor
-    m_counter.reset(); // reset the counter to zero (invalid data now)
+    m_transducer.reset(); // reset the counter to zero (invalid data now)
     // do the ping to start getting a single range
-    m_pingChannel.pulse(kPingTime);
+    m_transducer.ping(kPingTime);
   }
 
   /**
    * Check if there is a valid range measurement. The ranges are accumulated in a counter that will
    * increment on each edge of the echo (return) signal. If the count is not at least 2, then the
-   * range has not yet been measured, and is invalid.
+   * range has not yet been measured, and is invalid. A closed sensor never has a valid range.
    *
    * @return true if the range is valid
    */
   public boolean isRangeValid() {
-    return m_counter.get() > 1;
+    final Transducer transducer = m_transducer;
+    return transducer != null && transducer.getEchoCount() > 1;
   }
 
   /**
@@ -308,13 +479,65 @@ public class Ultrasonic2537 extends SendableBase implements PIDSource {
    * @return double Range in inches of the target returned from the Ultrasonic2537 sensor.
    */
   public double getRangeInches() {
-    if (isRangeValid()) {
-      return m_counter.getPeriod() * kSpeedOfSoundInchesPerSec / 2.0;
+    final Transducer transducer = m_transducer;
+    if (transducer != null && transducer.getEchoCount() > 1) {
+      return transducer.getEchoPeriod() * kSpeedOfSoundInchesPerSec / 2.0;
     } else {
       return 0;
     }
   }
 
+  /**
+   * Add a listener that is told the range each time an echo completes. Echoes are only watched in
+   * automatic mode.
+   *
+   * @param listener The listener to add.
+   */
+  public synchronized void addRangeListener(RangeListener listener) {
+    requireNonNull(listener, "Provided listener was null");
+    final RangeListener[] listeners = Arrays.copyOf(m_listeners, m_listeners.length + 1);
+    listeners[listeners.length - 1] = listener;
+    m_listeners = listeners;
+  }
+
+  /**
+   * Remove a listener added with {@link #addRangeListener(RangeListener)}.
+   *
+   * @param listener The listener to remove.
+   */
+  public synchronized void removeRangeListener(RangeListener listener) {
+    final RangeListener[] listeners = m_listeners;
+    for (int i = 0; i < listeners.length; i++) {
+      if (listeners[i] == listener) {
+        final RangeListener[] remaining = new RangeListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, remaining, 0, i);
+        System.arraycopy(listeners, i + 1, remaining, i, listeners.length - i - 1);
+        m_listeners = remaining;
+        return;
+      }
+    }
+  }
+
+  private void notifyListeners(double timestamp) {
+    final RangeListener[] listeners = m_listeners;
+    if (listeners.length == 0 || !isRangeValid()) {
+      return;
+    }
+    final double range = getRangeInches();
+    for (RangeListener listener : listeners) {
+      listener.rangeReceived(m_sensorId, range, timestamp);
+    }
+  }
+
+  /**
+   * Get the id passed to range listeners, which is the echo channel number.
+   *
+   * @return the sensor id
+   */
+  public int getSensorId() {
+    return m_sensorId;
+  }
+
   /**
    * Get the range in millimeters from the Ultrasonic2537 sensor. If there is no valid value yet, i.e.
    * at least one measurement hasn't completed, then return 0.
@@ -0,0 +1,326 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import edu.wpi.first.hal.HAL;
+
+/**
+ * Runs Macadamia's teleop loop through a standard set of simulated scenarios and checks loop
+ * time, allocation and ultrasonic sampling. Exits with status 1 if any scenario failed, which
+ * fails the Gradle build.
+ *
+ * <p>Allocation per loop and ultrasonic reads per second don't depend on the machine, so they
+ * are held to fixed limits from the baseline file. Loop time does, so each loop time percentile
+ * is divided by the time of a fixed reference workload measured in the same run, and that ratio
+ * is compared with the baseline. A metric with no baseline or limit gets a warning, not a
+ * failure.
+ *
+ * <p>Run by {@code ./gradlew checkLoopPerformance}. Pass {@code -PupdatePerfBaseline} to record
+ * the current numbers as the new baseline instead; limits and tolerances are kept, and a missing
+ * allocation limit is set from the highest allocation measured.
+ */
+public final class LoopPerformanceGate {
+  private static final double kLoopPeriod = 0.02;
+  // Loops run before measuring, so the JIT has compiled the loop
+  private static final int kWarmupLoops = 250;
+  // Size of the array the reference workload sorts, roughly 100-200 us of work on a desktop
+  private static final int kReferenceSize = 4096;
+  private static final int kReferenceRuns = 31;
+  // Allocation may always grow this much (bytes per loop) over its baseline, so an allocation
+  // free loop doesn't fail on a stray object
+  private static final double kAllocationFloor = 16.0;
+  private static final String kAllocationLimit = "limit.allocBytesPerLoop";
+  private static final String[] kSettings = {"tolerance.loopTime", "tolerance.loopTimeFloor",
+      "tolerance.allocation", "limit.ultrasonicReadsPerSec"};
+
+  private LoopPerformanceGate() {
+  }
+
+  /**
+   * One simulated driving situation. Sets the inputs before each loop.
+   */
+  private abstract static class Scenario {
+    final String m_name;
+    final int m_loops;
+
+    Scenario(String name, int loops) {
+      m_name = name;
+      m_loops = loops;
+    }
+
+    abstract void setInputs(SimulatedMacadamia robot, int loop);
+  }
+
+  // DriveAround starts a thread that keeps running, so it goes last
+  private static final Scenario[] kScenarios = {
+    new Scenario("joystickNearObstacles", 1500) {
+      @Override
+      void setInputs(SimulatedMacadamia robot, int loop) {
+        // full forward, then full back, while obstacles come and go on both ends
+        final double stick = loop < m_loops / 2 ? -0.8 : 0.8;
+        robot.m_controller.m_leftY = stick;
+        robot.m_controller.m_rightY = stick;
+        robot.m_front.m_range = 45.0 + 35.0 * Math.sin(loop * 2.0 * Math.PI / 250.0);
+        robot.m_rear.m_range = 45.0 + 35.0 * Math.cos(loop * 2.0 * Math.PI / 250.0);
+      }
+    },
+    new Scenario("encoderMoves", 1500) {
+      @Override
+      void setInputs(SimulatedMacadamia robot, int loop) {
+        if (loop % 150 == 0) {
+          switch ((loop / 150) % 4) {
+            case 0:
+              robot.m_controller.m_y = true;
+              break;
+            case 1:
+              robot.m_controller.m_b = true;
+              break;
+            case 2:
+              robot.m_controller.m_a = true;
+              break;
+            default:
+              robot.m_controller.m_x = true;
+              break;
+          }
+        }
+      }
+    },
+    new Scenario("driveAround", 1500) {
+      @Override
+      void setInputs(SimulatedMacadamia robot, int loop) {
+        if (loop == 0) {
+          robot.m_controller.m_start = true;
+        }
+      }
+    },
+  };
+
+  /**
+   * Run the scenarios and check them against the baseline.
+   *
+   * @param args The baseline file, then optionally "--update" to rewrite it.
+   */
+  public static void main(String... args) throws IOException {
+    final Path baselineFile = Paths.get(args[0]);
+    final boolean update = args.length > 1 && "--update".equals(args[1]);
+    final Properties baseline = new Properties();
+    if (Files.exists(baselineFile)) {
+      try (InputStream in = Files.newInputStream(baselineFile)) {
+        baseline.load(in);
+      }
+    }
+
+    HAL.initialize(500, 0);
+    final SimulatedMacadamia robot = new SimulatedMacadamia();
+    robot.robotInit();
+
+    final double referenceBefore = referenceMicros();
+    final Map<String, Double> measured = new TreeMap<>();
+    for (Scenario scenario : kScenarios) {
+      run(robot, scenario, measured);
+    }
+    // take the quieter of the two, in case something else was running on the machine
+    final double reference = Math.min(referenceBefore, referenceMicros());
+    System.out.printf("Reference workload: %.1f us%n", reference);
+    for (Scenario scenario : kScenarios) {
+      for (String percentile : new String[] {"p50", "p90", "p99"}) {
+        final String prefix = scenario.m_name + "." + percentile;
+        final double micros = measured.remove(prefix + "Micros");
+        System.out.printf("  %-45s %12.2f%n", prefix + "Micros", micros);
+        measured.put(prefix + "Relative", micros / reference);
+      }
+    }
+
+    if (update) {
+      writeBaseline(baselineFile, baseline, measured);
+      System.out.println("Recorded loop performance baseline in " + baselineFile);
+      System.exit(0);
+    }
+    System.exit(compare(baseline, measured) ? 0 : 1);
+  }
+
+  private static void run(SimulatedMacadamia robot, Scenario scenario,
+      Map<String, Double> measured) {
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long threadId = Thread.currentThread().getId();
+    final long[] loopNanos = new long[scenario.m_loops - kWarmupLoops];
+
+    robot.resetInputs();
+    long allocatedBefore = 0;
+    int readsBefore = 0;
+    for (int loop = 0; loop < scenario.m_loops; loop++) {
+      if (loop == kWarmupLoops) {
+        allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        readsBefore = robot.getUltrasonicReads();
+      }
+      scenario.setInputs(robot, loop);
+      final long start = System.nanoTime();
+      robot.teleopPeriodic();
+      robot.robotPeriodic();
+      final long elapsed = System.nanoTime() - start;
+      if (loop >= kWarmupLoops) {
+        loopNanos[loop - kWarmupLoops] = elapsed;
+      }
+      robot.stepDrivetrain();
+    }
+    final long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    final int reads = robot.getUltrasonicReads() - readsBefore;
+
+    Arrays.sort(loopNanos);
+    final String prefix = scenario.m_name + ".";
+    measured.put(prefix + "p50Micros", percentile(loopNanos, 0.50));
+    measured.put(prefix + "p90Micros", percentile(loopNanos, 0.90));
+    measured.put(prefix + "p99Micros", percentile(loopNanos, 0.99));
+    measured.put(prefix + "allocBytesPerLoop", (double) allocated / loopNanos.length);
+    measured.put(prefix + "ultrasonicReadsPerSec", reads / (loopNanos.length * kLoopPeriod));
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))] / 1e3;
+  }
+
+  /**
+   * Time a fixed workload: sorting the same pseudo-random doubles every run. It exercises the
+   * same things the loop does (arithmetic, branches, memory) so both scale alike across machines.
+   *
+   * @return the median time of one run (us)
+   */
+  private static double referenceMicros() {
+    final double[] source = new double[kReferenceSize];
+    long seed = 2537;
+    for (int i = 0; i < source.length; i++) {
+      seed = seed * 6364136223846793005L + 1442695040888963407L;
+      source[i] = (seed >>> 11) * 0x1.0p-53;
+    }
+    final double[] work = new double[kReferenceSize];
+    final long[] runNanos = new long[kReferenceRuns];
+    double sink = 0.0;
+    for (int run = -kReferenceRuns; run < kReferenceRuns; run++) { // first half warms up
+      System.arraycopy(source, 0, work, 0, work.length);
+      final long start = System.nanoTime();
+      Arrays.sort(work);
+      if (run >= 0) {
+        runNanos[run] = System.nanoTime() - start;
+      }
+      sink += work[run & (kReferenceSize - 1)];
+    }
+    if (sink < 0.0) {
+      System.out.println(sink); // never true; keeps the sort from being optimized away
+    }
+    Arrays.sort(runNanos);
+    return percentile(runNanos, 0.5);
+  }
+
+  private static boolean compare(Properties baseline, Map<String, Double> measured) {
+    boolean passed = true;
+    for (String key : kSettings) {
+      if (baseline.getProperty(key) == null) {
+        System.out.println("Missing " + key + " in the baseline file");
+        passed = false;
+      }
+    }
+    if (!passed) {
+      return false;
+    }
+    final double loopTime = setting(baseline, "tolerance.loopTime");
+    final double loopTimeFloor = setting(baseline, "tolerance.loopTimeFloor");
+    final double allocation = setting(baseline, "tolerance.allocation");
+    final String limit = baseline.getProperty(kAllocationLimit);
+    final double allocationLimit =
+        limit == null ? Double.POSITIVE_INFINITY : Double.parseDouble(limit.trim());
+    final double sampleRateLimit = setting(baseline, "limit.ultrasonicReadsPerSec");
+
+    boolean missing = limit == null;
+    for (Map.Entry<String, Double> entry : measured.entrySet()) {
+      final String key = entry.getKey();
+      final double value = entry.getValue();
+      final String stored = baseline.getProperty(key);
+      final double base = stored == null ? Double.NaN : Double.parseDouble(stored.trim());
+      final boolean ok;
+      if (key.endsWith("Relative")) {
+        ok = stored == null || value <= Math.max(base * (1.0 + loopTime), base + loopTimeFloor);
+        missing |= stored == null;
+      } else if (key.endsWith("allocBytesPerLoop")) {
+        ok = value <= allocationLimit
+            && (stored == null || value <= Math.max(base * (1.0 + allocation), base + kAllocationFloor));
+        missing |= stored == null;
+      } else {
+        ok = value >= sampleRateLimit;
+      }
+      System.out.printf("  %-45s %12.3f  baseline %12.3f  %s%n", key, value, base,
+          !ok ? "REGRESSED" : stored == null && !key.endsWith("ReadsPerSec") ? "NO BASELINE" : "ok");
+      passed &= ok;
+    }
+    if (missing) {
+      System.out.println("WARNING: some loop times or allocations have no baseline or limit and "
+          + "were not checked; run with -PupdatePerfBaseline to record them, and commit the "
+          + "baseline file.");
+    }
+    System.out.println(passed ? "Loop performance OK" : "Loop performance check failed");
+    return passed;
+  }
+
+  private static double setting(Properties baseline, String key) {
+    return Double.parseDouble(baseline.getProperty(key).trim());
+  }
+
+  private static void writeBaseline(Path file, Properties old, Map<String, Double> measured)
+      throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+      out.println("# Loop performance baseline for ./gradlew checkLoopPerformance.");
+      out.println("# Regenerate with ./gradlew checkLoopPerformance -PupdatePerfBaseline;");
+      out.println("# tolerances are kept, measurements are replaced.");
+      out.println();
+      out.println("# Loop times are in units of the reference workload. They may grow by the");
+      out.println("# loopTime fraction or by loopTimeFloor units, whichever is larger.");
+      out.println("# Allocation per loop may grow by the allocation fraction over its baseline,");
+      out.println("# and must stay under its limit whatever the baseline says; the first");
+      out.println("# -PupdatePerfBaseline run sets the limit from what it measured. Ultrasonic");
+      out.println("# reads per second must stay above their limit: two sensors at 50 Hz is 100.");
+      for (String key : kSettings) {
+        final String value = old.getProperty(key);
+        if (value != null) {
+          out.println(key + " = " + value.trim());
+        }
+      }
+      final String limit = old.getProperty(kAllocationLimit);
+      if (limit != null) {
+        out.println(kAllocationLimit + " = " + limit.trim());
+      } else {
+        // the worst scenario, with the same headroom the baselines get
+        double worst = 0.0;
+        for (Map.Entry<String, Double> entry : measured.entrySet()) {
+          if (entry.getKey().endsWith("allocBytesPerLoop")) {
+            worst = Math.max(worst, entry.getValue());
+          }
+        }
+        final String tolerance = old.getProperty("tolerance.allocation");
+        final double headroom = tolerance == null ? 0.0 : Double.parseDouble(tolerance.trim());
+        out.println(kAllocationLimit + " = "
+            + (long) Math.ceil(Math.max(worst * (1.0 + headroom), worst + kAllocationFloor)));
+      }
+      out.println();
+      for (Map.Entry<String, Double> entry : measured.entrySet()) {
+        out.printf("%s = %.4f%n", entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Stand-in for either end of the {@link SensorBus}, for testing on a Linux desktop without a
+ * robot. Run one process as the robot and another as the coprocessor:
+ *
+ * <pre>
+ *   ./gradlew sensorBusStandIn --args='robot'
+ *   ./gradlew sensorBusStandIn --args='coprocessor'
+ * </pre>
+ *
+ * <p>The robot side writes a made-up state at 50 Hz. The coprocessor side answers each new state
+ * with the nearest range it saw and the state's write time, and both sides print once a second
+ * how many records went each way and the round-trip latency. An optional second argument picks
+ * the bus file.
+ */
+public final class SensorBusStandIn {
+  private static final long kLoopNanos = 20_000_000L;
+
+  private SensorBusStandIn() {
+  }
+
+  /**
+   * Run the stand-in.
+   *
+   * @param args "robot" or "coprocessor", then optionally the bus file.
+   */
+  public static void main(String... args) throws IOException {
+    if (args.length < 1 || !("robot".equals(args[0]) || "coprocessor".equals(args[0]))) {
+      System.err.println("usage: SensorBusStandIn robot|coprocessor [bus file]");
+      System.exit(2);
+    }
+    final Path path = Paths.get(args.length > 1 ? args[1] : SensorBus.kDefaultPath);
+    try (SensorBus bus = SensorBus.open(path)) {
+      if ("robot".equals(args[0])) {
+        runRobot(bus);
+      } else {
+        runCoprocessor(bus);
+      }
+    }
+  }
+
+  private static void runRobot(SensorBus bus) {
+    final SensorBus.RobotState state = new SensorBus.RobotState();
+    final SensorBus.CoprocessorResult result = new SensorBus.CoprocessorResult();
+    final long start = System.nanoTime();
+    long next = start;
+    long lastPrint = start;
+    int lastResultSeq = 0;
+    int written = 0;
+    int results = 0;
+    double latencySum = 0.0;
+    while (true) {
+      final long now = System.nanoTime();
+      final double t = (now - start) * 1e-9;
+      state.monotonicNanos = now;
+      state.timestamp = t;
+      state.leftCount = (int) (t * 500);
+      state.rightCount = (int) (t * 480);
+      state.frontRange = 40.0 + 20.0 * Math.sin(t);
+      state.rearRange = 60.0 + 20.0 * Math.cos(t);
+      state.leftOutput = 0.5;
+      state.rightOutput = 0.5;
+      state.flags = SensorBus.STATE_ENABLED | SensorBus.STATE_FRONT_FRESH
+          | SensorBus.STATE_REAR_FRESH;
+      bus.writeState(state);
+      written++;
+
+      final int resultSeq = bus.readResult(result);
+      if (resultSeq != SensorBus.kNoRecord && resultSeq != lastResultSeq) {
+        lastResultSeq = resultSeq;
+        results++;
+        latencySum += (System.nanoTime() - (long) result.values[1]) * 1e-6;
+      }
+
+      if (now - lastPrint >= 1_000_000_000L) {
+        System.out.printf("robot: wrote %d states, got %d results, mean result age %.3f ms%n",
+            written, results, results > 0 ? latencySum / results : 0.0);
+        lastPrint = now;
+        written = 0;
+        results = 0;
+        latencySum = 0.0;
+      }
+
+      next += kLoopNanos;
+      sleepUntil(next);
+    }
+  }
+
+  private static void runCoprocessor(SensorBus bus) {
+    final SensorBus.RobotState state = new SensorBus.RobotState();
+    final SensorBus.CoprocessorResult result = new SensorBus.CoprocessorResult();
+    long lastPrint = System.nanoTime();
+    int lastStateSeq = 0;
+    int states = 0;
+    double latencySum = 0.0;
+    while (true) {
+      final int stateSeq = bus.readState(state);
+      final long now = System.nanoTime();
+      if (stateSeq != SensorBus.kNoRecord && stateSeq != lastStateSeq) {
+        lastStateSeq = stateSeq;
+        states++;
+        latencySum += (now - state.monotonicNanos) * 1e-6;
+        result.id = 1;
+        result.monotonicNanos = now;
+        result.values[0] = Math.min(state.frontRange, state.rearRange);
+        result.values[1] = state.monotonicNanos;
+        bus.writeResult(result);
+      }
+
+      if (now - lastPrint >= 1_000_000_000L) {
+        System.out.printf("coprocessor: got %d states, mean state age %.3f ms%n", states,
+            states > 0 ? latencySum / states : 0.0);
+        lastPrint = now;
+        states = 0;
+        latencySum = 0.0;
+      }
+      sleepUntil(now + 1_000_000L); // poll at 1 kHz
+    }
+  }
+
+  private static void sleepUntil(long deadline) {
+    long remaining = deadline - System.nanoTime();
+    if (remaining > 0) {
+      try {
+        Thread.sleep(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.util.function.IntSupplier;
+
+import edu.wpi.first.wpilibj.DigitalInput;
+import edu.wpi.first.wpilibj.DigitalOutput;
+import edu.wpi.first.wpilibj.Encoder;
+import edu.wpi.first.wpilibj.Talon;
+import edu.wpi.first.wpilibj.Ultrasonic;
+import edu.wpi.first.wpilibj.XboxController;
+
+/**
+ * Macadamia running against the desktop HAL, with the sensors and controller replaced by fakes
+ * the loop scenarios can steer. The motors are real (simulated PWM) Talons; a crude drivetrain
+ * model turns their outputs into encoder counts after every loop.
+ */
+class SimulatedMacadamia extends Macadamia {
+  // Encoder counts per loop at full output, roughly what the real robot does
+  private static final double kCountsPerLoop = 100.0;
+
+  /**
+   * Ultrasonic that reports whatever range the scenario sets.
+   */
+  static final class FakeUltrasonic extends Ultrasonic {
+    volatile double m_range = 100.0;
+    int m_reads;
+
+    FakeUltrasonic(int pingChannel, DigitalInput echo) {
+      super(new DigitalOutput(pingChannel), echo);
+    }
+
+    @Override
+    public boolean isRangeValid() {
+      return true;
+    }
+
+    @Override
+    public double getRangeInches() {
+      m_reads++;
+      return m_range;
+    }
+  }
+
+  /**
+   * Encoder whose count is driven by the drivetrain model.
+   */
+  static final class FakeEncoder extends Encoder {
+    volatile double m_position;
+
+    FakeEncoder(int channelA, int channelB, boolean reversed) {
+      super(channelA, channelB, reversed);
+    }
+
+    @Override
+    public int getRaw() {
+      return (int) m_position;
+    }
+
+    @Override
+    public int get() {
+      return (int) m_position;
+    }
+
+    @Override
+    public void reset() {
+      m_position = 0.0;
+    }
+  }
+
+  /**
+   * Controller with stick positions set by the scenario. A button "press" is seen once.
+   */
+  static final class FakeController extends XboxController {
+    double m_leftY;
+    double m_rightY;
+    boolean m_start;
+    boolean m_y;
+    boolean m_b;
+    boolean m_a;
+    boolean m_x;
+
+    FakeController(int port) {
+      super(port);
+    }
+
+    @Override
+    public double getY(Hand hand) {
+      return hand == Hand.kLeft ? m_leftY : m_rightY;
+    }
+
+    @Override
+    public boolean getStartButtonPressed() {
+      final boolean pressed = m_start;
+      m_start = false;
+      return pressed;
+    }
+
+    @Override
+    public boolean getYButtonPressed() {
+      final boolean pressed = m_y;
+      m_y = false;
+      return pressed;
+    }
+
+    @Override
+    public boolean getBButtonPressed() {
+      final boolean pressed = m_b;
+      m_b = false;
+      return pressed;
+    }
+
+    @Override
+    public boolean getAButtonPressed() {
+      final boolean pressed = m_a;
+      m_a = false;
+      return pressed;
+    }
+
+    @Override
+    public boolean getXButtonPressed() {
+      final boolean pressed = m_x;
+      m_x = false;
+      return pressed;
+    }
+  }
+
+  Talon m_leftMotor;
+  Talon m_rightMotor;
+  FakeUltrasonic m_front;
+  FakeUltrasonic m_rear;
+  FakeEncoder m_leftEncoder;
+  FakeEncoder m_rightEncoder;
+  FakeController m_controller;
+
+  @Override
+  Talon createMotor(int channel) {
+    final Talon motor = super.createMotor(channel);
+    if (m_leftMotor == null) {
+      m_leftMotor = motor;
+    } else {
+      m_rightMotor = motor;
+    }
+    return motor;
+  }
+
+  @Override
+  Ultrasonic createUltrasonic(int pingChannel, DigitalInput echo) {
+    final FakeUltrasonic sensor = new FakeUltrasonic(pingChannel, echo);
+    if (m_front == null) {
+      m_front = sensor;
+    } else {
+      m_rear = sensor;
+    }
+    return sensor;
+  }
+
+  /**
+   * Echo count that advances every time it is read, so each loop sees a fresh echo.
+   */
+  @Override
+  IntSupplier createEchoCounter(DigitalInput echo) {
+    final int[] echoes = new int[1];
+    return () -> ++echoes[0];
+  }
+
+  @Override
+  Encoder createEncoder(int channelA, int channelB, boolean reversed) {
+    final FakeEncoder encoder = new FakeEncoder(channelA, channelB, reversed);
+    if (m_leftEncoder == null) {
+      m_leftEncoder = encoder;
+    } else {
+      m_rightEncoder = encoder;
+    }
+    return encoder;
+  }
+
+  @Override
+  XboxController createController(int port) {
+    m_controller = new FakeController(port);
+    return m_controller;
+  }
+
+  /**
+   * Advance the drivetrain model by one loop. DifferentialDrive inverts the right motor, so its
+   * output is flipped back to get the side's direction of travel.
+   */
+  void stepDrivetrain() {
+    m_leftEncoder.m_position += m_leftMotor.get() * kCountsPerLoop;
+    m_rightEncoder.m_position -= m_rightMotor.get() * kCountsPerLoop;
+  }
+
+  /**
+   * Put the inputs back to rest: sticks centered, nothing near either sensor.
+   */
+  void resetInputs() {
+    m_controller.m_leftY = 0.0;
+    m_controller.m_rightY = 0.0;
+    m_front.m_range = 100.0;
+    m_rear.m_range = 100.0;
+  }
+
+  int getUltrasonicReads() {
+    return m_front.m_reads + m_rear.m_reads;
+  }
+}
@@ -0,0 +1,42 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import edu.wpi.first.hal.HAL;
+
+/**
+ * Starts Macadamia on the desktop HAL, runs one loop in each mode and exits. Used to record the
+ * class list for the class-data-sharing archive (every class a real startup touches gets loaded
+ * here) and to compare startup time with and without the archive. Macadamia prints its startup
+ * profile on the first loop; this prints the JVM uptime once the robot could be driven.
+ */
+public final class StartupProbe {
+  private StartupProbe() {
+  }
+
+  /**
+   * Run the probe.
+   *
+   * @param args Ignored.
+   */
+  public static void main(String... args) {
+    HAL.initialize(500, 0);
+    final Macadamia robot = new Macadamia();
+    robot.robotInit();
+    robot.disabledPeriodic();
+    robot.robotPeriodic();
+    System.out.println("Time to enabled-ready: " + StartupProfile.uptimeMillis() + " ms");
+
+    robot.autonomousInit();
+    robot.autonomousPeriodic();
+    robot.robotPeriodic();
+    robot.teleopPeriodic();
+    robot.robotPeriodic();
+    System.exit(0);
+  }
+}
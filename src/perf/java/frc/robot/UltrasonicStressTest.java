@@ -0,0 +1,326 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2019 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package frc.robot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.wpi.first.hal.HAL;
+
+/**
+ * Stress suite for the Ultrasonic2537 round robin. For 2, 4, 8 and 16 simulated sensors it runs
+ * automatic mode while another thread keeps adding and removing a sensor and reader threads
+ * hammer getRangeInches, then reports:
+ *
+ * <ul>
+ * <li>per-sensor update rate, against the 1 / (sensors x slot) the schedule promises (a bit
+ *     less, since the churned sensor gets slots too),
+ * <li>ping-to-read latency, from the ping to the range listener firing,
+ * <li>ranges the listener got from the wrong ping,
+ * <li>the longest a reader call took,
+ * <li>lock contention: how often and how long the checker and reader threads were blocked on a
+ *     monitor, and the same for the thread adding and removing sensors,
+ * <li>the longest a hot add and a hot remove took.
+ * </ul>
+ *
+ * <p>Exits with status 1 if any size fails a check: an update rate outside the schedule, a range
+ * from the wrong ping, the checker or a reader ever blocking on a lock, an add taking more than
+ * a few ms, or a remove taking more than one slot (it waits for the checker to leave the
+ * sensor's slot, so up to a slot is expected).
+ *
+ * <p>Run by {@code ./gradlew ultrasonicStress}; the optional argument is seconds per size.
+ */
+public final class UltrasonicStressTest {
+  private static final double kSlot = 0.1;
+  private static final double kSpeedOfSoundInchesPerSec = 1130.0 * 12.0;
+  private static final int[] kSizes = {2, 4, 8, 16};
+  private static final int kReaders = 2;
+  // Slack (sec) on the add/remove limits for scheduling noise on a loaded desktop
+  private static final double kStallSlack = 0.01;
+  // Fraction the update rate may fall short of the schedule, e.g. to a slot lost to a GC pause
+  private static final double kRateTolerance = 0.1;
+  private static final ThreadMXBean kThreads = ManagementFactory.getThreadMXBean();
+
+  private UltrasonicStressTest() {
+  }
+
+  /**
+   * Simulated sensor hardware, counting edges like the real semi-period counter: the echo line
+   * goes high (count + 1) as the ping leaves, and low (count + 1 again) when the echo comes back
+   * after the round trip time. Only then is the new period latched. Every other ping sees a
+   * target an inch further away, so a range from the previous ping can be told apart.
+   */
+  private static final class SimTransducer implements Ultrasonic2537.Transducer {
+    private final double m_rangeInches;
+    // Written by the pinging thread; the ping time is written last to publish a ping
+    private volatile int m_pings;
+    private volatile int m_baseCount;
+    private volatile double m_lastPeriod;
+    private volatile long m_pingNanos;
+
+    SimTransducer(double rangeInches) {
+      m_rangeInches = rangeInches;
+    }
+
+    double rangeForPing(int ping) {
+      return m_rangeInches + (ping & 1);
+    }
+
+    private double flightTime(int ping) {
+      return 2.0 * rangeForPing(ping) / kSpeedOfSoundInchesPerSec;
+    }
+
+    private boolean echoReturned() {
+      final long pingNanos = m_pingNanos;
+      return pingNanos != 0 && System.nanoTime() - pingNanos >= (long) (flightTime(m_pings) * 1e9);
+    }
+
+    @Override
+    public void ping(double pulseTime) {
+      // an unanswered ping's line drops now, which is an edge too
+      final boolean unanswered = m_pingNanos != 0 && !echoReturned();
+      m_baseCount = getEchoCount() + (unanswered ? 1 : 0);
+      m_lastPeriod = getEchoPeriod();
+      m_pings++;
+      m_pingNanos = System.nanoTime();
+    }
+
+    @Override
+    public int getEchoCount() {
+      if (m_pingNanos == 0) {
+        return m_baseCount;
+      }
+      return m_baseCount + (echoReturned() ? 2 : 1);
+    }
+
+    @Override
+    public double getEchoPeriod() {
+      return echoReturned() ? flightTime(m_pings) : m_lastPeriod;
+    }
+
+    @Override
+    public void reset() {
+      m_pingNanos = 0;
+      m_baseCount = 0;
+      m_lastPeriod = 0.0;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Counts updates, ping-to-read latency and ranges from the wrong ping for one sensor. Only the
+   * checker thread writes.
+   */
+  private static final class Tally implements Ultrasonic2537.RangeListener {
+    private final SimTransducer m_transducer;
+    volatile int m_updates;
+    volatile int m_wrongRanges;
+    volatile double m_latencySum;
+    volatile double m_latencyMax;
+
+    Tally(SimTransducer transducer) {
+      m_transducer = transducer;
+    }
+
+    @Override
+    public void rangeReceived(int sensorId, double rangeInches, double timestamp) {
+      final double latency = (System.nanoTime() - m_transducer.m_pingNanos) * 1e-9;
+      m_updates++;
+      m_latencySum += latency;
+      m_latencyMax = Math.max(m_latencyMax, latency);
+      if (Math.abs(rangeInches - m_transducer.rangeForPing(m_transducer.m_pings)) > 0.01) {
+        m_wrongRanges++;
+      }
+    }
+  }
+
+  /**
+   * Monitor contention for a set of threads, from the JVM's thread contention monitoring.
+   */
+  private static final class Contention {
+    long m_blockedCount;
+    long m_blockedMillis;
+
+    void add(Thread... threads) {
+      for (Thread thread : threads) {
+        final ThreadInfo info = kThreads.getThreadInfo(thread.getId());
+        if (info != null) {
+          m_blockedCount += info.getBlockedCount();
+          m_blockedMillis += Math.max(0, info.getBlockedTime());
+        }
+      }
+    }
+  }
+
+  /**
+   * Run the suite.
+   *
+   * @param args Optionally, seconds to run each size for.
+   */
+  public static void main(String... args) throws InterruptedException {
+    final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 8.0;
+    HAL.initialize(500, 0);
+    if (kThreads.isThreadContentionMonitoringSupported()) {
+      kThreads.setThreadContentionMonitoringEnabled(true);
+    }
+    System.out.println("sensors  schedule Hz  min Hz  mean Hz  ping-read ms (mean/max)  wrong  "
+        + "reader max us  blocked checker+readers (n/ms)  churn (n/ms)  add/remove max ms");
+    boolean passed = true;
+    for (int size : kSizes) {
+      passed &= run(size, seconds);
+    }
+    System.out.println(passed ? "Ultrasonic stress OK" : "Ultrasonic stress FAILED");
+    System.exit(passed ? 0 : 1);
+  }
+
+  private static boolean run(int size, double seconds) throws InterruptedException {
+    final Ultrasonic2537[] sensors = new Ultrasonic2537[size];
+    final Tally[] tallies = new Tally[size];
+    for (int i = 0; i < size; i++) {
+      final SimTransducer transducer = new SimTransducer(20.0 + 5.0 * i);
+      sensors[i] = new Ultrasonic2537(transducer, i);
+      tallies[i] = new Tally(transducer);
+      sensors[i].addRangeListener(tallies[i]);
+    }
+    sensors[0].setAutomaticMode(true);
+
+    final Thread checker = findThread("Ultrasonic2537Checker");
+    final long[] readerMaxNanos = new long[kReaders];
+    final long[] addMaxNanos = new long[1];
+    final long[] removeMaxNanos = new long[1];
+    final AtomicBoolean running = new AtomicBoolean(true);
+
+    final Thread[] readers = new Thread[kReaders];
+    for (int r = 0; r < kReaders; r++) {
+      final int reader = r;
+      readers[r] = new Thread(() -> {
+        while (running.get()) {
+          for (Ultrasonic2537 sensor : sensors) {
+            final long start = System.nanoTime();
+            sensor.getRangeInches();
+            sensor.isRangeValid();
+            readerMaxNanos[reader] = Math.max(readerMaxNanos[reader], System.nanoTime() - start);
+          }
+          Thread.yield();
+        }
+      }, "StressReader" + r);
+      readers[r].start();
+    }
+
+    // keeps one extra sensor coming and going, so the list changes under the checker
+    final Thread churn = new Thread(() -> {
+      int id = 100;
+      while (running.get()) {
+        long start = System.nanoTime();
+        final Ultrasonic2537 extra = new Ultrasonic2537(new SimTransducer(50.0), id++);
+        addMaxNanos[0] = Math.max(addMaxNanos[0], System.nanoTime() - start);
+        sleep(150);
+        start = System.nanoTime();
+        extra.close();
+        removeMaxNanos[0] = Math.max(removeMaxNanos[0], System.nanoTime() - start);
+        sleep(50);
+      }
+    }, "StressChurn");
+    churn.start();
+
+    Thread.sleep((long) (seconds * 1000));
+    running.set(false);
+    // the checker is stopped below, so sample contention while all the threads are still alive
+    final Contention hot = new Contention();
+    hot.add(readers);
+    if (checker != null) {
+      hot.add(checker);
+    }
+    final Contention churned = new Contention();
+    churned.add(churn);
+    churn.join();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    sensors[0].setAutomaticMode(false);
+
+    double minRate = Double.MAX_VALUE;
+    double rateSum = 0.0;
+    double latencySum = 0.0;
+    double latencyMax = 0.0;
+    int updates = 0;
+    int wrongRanges = 0;
+    for (Tally tally : tallies) {
+      final double rate = tally.m_updates / seconds;
+      minRate = Math.min(minRate, rate);
+      rateSum += rate;
+      updates += tally.m_updates;
+      wrongRanges += tally.m_wrongRanges;
+      latencySum += tally.m_latencySum;
+      latencyMax = Math.max(latencyMax, tally.m_latencyMax);
+    }
+    long readerMax = 0;
+    for (long nanos : readerMaxNanos) {
+      readerMax = Math.max(readerMax, nanos);
+    }
+    // upper bound; the churned sensor is in the list 3/4 of the time and takes slots too
+    final double expected = 1.0 / (size * kSlot);
+    // a run isn't a whole number of rounds, so allow one update either way
+    final double lowest = 1.0 / ((size + 0.75) * kSlot) * (1.0 - kRateTolerance) - 1.0 / seconds;
+    final double highest = expected * (1.0 + kRateTolerance) + 1.0 / seconds;
+    System.out.printf("%7d  %11.2f  %6.2f  %7.2f  %11.2f / %-10.2f  %5d  %13.1f  %15d / %-12d  "
+        + "%5d / %-5d  %8.1f / %-8.1f%n", size, expected, minRate, rateSum / size,
+        updates > 0 ? latencySum / updates * 1e3 : 0.0, latencyMax * 1e3, wrongRanges,
+        readerMax / 1e3, hot.m_blockedCount, hot.m_blockedMillis, churned.m_blockedCount,
+        churned.m_blockedMillis, addMaxNanos[0] / 1e6, removeMaxNanos[0] / 1e6);
+
+    for (Ultrasonic2537 sensor : sensors) {
+      sensor.close();
+    }
+
+    boolean passed = true;
+    passed &= check(minRate >= lowest, size, "slowest sensor updated at %.2f Hz, below %.2f Hz",
+        minRate, lowest);
+    passed &= check(rateSum / size <= highest, size,
+        "sensors updated at %.2f Hz on average, faster than the %.2f Hz schedule", rateSum / size,
+        expected);
+    passed &= check(wrongRanges == 0, size, "%d ranges came from the previous ping", wrongRanges);
+    passed &= check(checker != null, size, "checker thread not found");
+    passed &= check(hot.m_blockedCount == 0, size,
+        "checker and readers blocked on a lock %d times", hot.m_blockedCount);
+    passed &= check(addMaxNanos[0] * 1e-9 <= kStallSlack, size, "an add took %.1f ms",
+        addMaxNanos[0] / 1e6);
+    passed &= check(removeMaxNanos[0] * 1e-9 <= kSlot + kStallSlack, size,
+        "a remove took %.1f ms", removeMaxNanos[0] / 1e6);
+    return passed;
+  }
+
+  private static boolean check(boolean ok, int size, String format, Object... args) {
+    if (!ok) {
+      System.out.println("  FAIL (" + size + " sensors): " + String.format(format, args));
+    }
+    return ok;
+  }
+
+  private static Thread findThread(String name) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (name.equals(thread.getName())) {
+        return thread;
+      }
+    }
+    return null;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}